@@ -0,0 +1,219 @@
+package se.phi.ann;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes periodic checkpoints of a network during {@link Network#train(TrainingData, double, int, int, Checkpointer)
+ * training}.
+ *
+ * Taking a checkpoint only collects references to the current weight matrices, which are immutable, the
+ * checkpoint is written on a background thread. The file is written next to the checkpoint file and then
+ * renamed over it, hence a crash never leaves a partially written checkpoint. A checkpoint that falls due
+ * while the previous one is still being written is postponed.
+ *
+ * Whether a checkpoint is due is only checked when a batch completes, hence a time based checkpoint is
+ * taken at the end of the first batch after the interval has passed. With a single batch per epoch that
+ * is at most once per epoch.
+ */
+public class Checkpointer implements AutoCloseable {
+
+    /**
+     * The point in training a checkpoint is taken at.
+     */
+    static final class Progress {
+
+        final int epoch;
+        final int batch;
+
+        /**
+         * Seed of the shuffle of the epoch, used when resuming part way through the epoch.
+         */
+        final long seed;
+
+        /**
+         * Running quadratic mean error of the epoch and the number of samples it is the mean of, plus one.
+         */
+        final double error;
+        final long iteration;
+
+        Progress(int epoch, int batch, long seed, double error, long iteration) {
+            this.epoch = epoch;
+            this.batch = batch;
+            this.seed = seed;
+            this.error = error;
+            this.iteration = iteration;
+        }
+    }
+
+    private static final String HEADER = "checkpoint";
+
+    private final Path path;
+    private final int nbrBatches;
+    private final long intervalNanos;
+    private final ExecutorService executor;
+
+    private int batchesSinceCheckpoint;
+    private long lastCheckpoint = System.nanoTime();
+    private Future<?> pending;
+    private volatile IOException failure;
+
+    /**
+     * Create a new checkpointer.
+     * @param path the checkpoint file
+     * @param nbrBatches take a checkpoint every {@code nbrBatches} batches, 0 to disable
+     * @param interval take a checkpoint when {@code interval} has passed since the last one, 0 to disable
+     * @param unit unit of {@code interval}
+     */
+    public Checkpointer(Path path, int nbrBatches, long interval, TimeUnit unit) {
+        if (nbrBatches < 0 || interval < 0) {
+            throw new IllegalArgumentException("Checkpoint frequency must not be negative");
+        }
+
+        this.path = path;
+        this.nbrBatches = nbrBatches;
+        this.intervalNanos = unit.toNanos(interval);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Check whether a checkpoint has been written.
+     * @return {@code true} if the checkpoint file exists
+     */
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * Wait for any checkpoint being written to complete.
+     * @throws IOException if writing a checkpoint failed and the failure was not thrown already
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        IOException e = failure;
+        failure = null;
+
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Restore the weights and pruning masks of a network from the checkpoint file if it exists.
+     * @return where to resume training, or {@code null} if there is no checkpoint
+     */
+    Progress restore(Network network) {
+        if (!exists()) {
+            return null;
+        }
+
+        try (InputStream inputStream = Files.newInputStream(path);
+             Scanner scanner = new Scanner(inputStream)) {
+            scanner.useLocale(Locale.ENGLISH);
+
+            if (!HEADER.equals(scanner.next())) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+
+            Progress progress = new Progress(scanner.nextInt(), scanner.nextInt(), scanner.nextLong(),
+                    scanner.nextDouble(), scanner.nextLong());
+            network.restore(scanner);
+            network.restorePruningMasks(scanner);
+
+            return progress;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Notify that a batch has been trained, takes a checkpoint if one is due.
+     * @param progress where to resume training
+     * @throws UncheckedIOException if writing a previous checkpoint failed
+     */
+    void batchCompleted(Network network, Progress progress) {
+        throwFailure();
+        batchesSinceCheckpoint++;
+
+        boolean due = (nbrBatches > 0 && batchesSinceCheckpoint >= nbrBatches)
+                || (intervalNanos > 0 && System.nanoTime() - lastCheckpoint >= intervalNanos);
+
+        if (due && (pending == null || pending.isDone())) {
+            checkpoint(network, progress);
+        }
+    }
+
+    /**
+     * Take a checkpoint.
+     * @param progress where to resume training
+     * @throws UncheckedIOException if writing a previous checkpoint failed
+     */
+    void checkpoint(Network network, Progress progress) {
+        throwFailure();
+        List<Layer.State> topology = network.getTopology();
+
+        batchesSinceCheckpoint = 0;
+        lastCheckpoint = System.nanoTime();
+        pending = executor.submit(() -> write(network, topology, progress));
+    }
+
+    private void throwFailure() {
+        IOException e = failure;
+
+        if (e != null) {
+            failure = null;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(Network network, List<Layer.State> topology, Progress progress) {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tmp.toFile())) {
+                PrintStream printStream = new PrintStream(new BufferedOutputStream(outputStream));
+                printStream.format("%s %d %d %d %s %d\n", HEADER, progress.epoch, progress.batch, progress.seed,
+                        Double.toString(progress.error), progress.iteration);
+                network.save(topology, printStream);
+                network.savePruningMasks(topology, printStream);
+                printStream.flush();
+
+                if (printStream.checkError()) {
+                    throw new IOException("Failed to write checkpoint " + tmp);
+                }
+
+                outputStream.getFD().sync();
+            }
+
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+}
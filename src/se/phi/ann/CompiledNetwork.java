@@ -0,0 +1,486 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * An immutable, flattened execution plan for a trained {@link Network}. The weights of all layers
+ * are stored in one contiguous buffer and inference is a plain loop over the layers, alternating
+ * between two activation buffers, rather than a recursive walk of {@link Layer} objects.
+ *
+ * The weights may be kept in a heap array, in direct memory or in a read-only memory mapped model
+ * file, see {@link #save(Path)} and {@link #map(Path)}. Mapping the same file from several processes
+ * shares one copy of the weights through the page cache.
+ *
+ * The {@link Network#SIGMOID} and {@link Network#HYPTAN} activation functions are evaluated inline
+ * on primitive doubles, other activation functions are called through {@link Function}.
+ *
+ * The plan is a snapshot, further training of the originating network is not reflected. Instances
+ * may be shared between threads, every thread gets its own pair of activation buffers.
+ */
+public final class CompiledNetwork {
+
+    /**
+     * The activation functions known to the compiled network.
+     */
+    private enum Activation {
+        CUSTOM, SIGMOID, HYPTAN;
+
+        static Activation of(Function<Double, Double> activationFunction) {
+            if (activationFunction == Network.SIGMOID) {
+                return SIGMOID;
+            } else if (activationFunction == Network.HYPTAN) {
+                return HYPTAN;
+            }
+            return CUSTOM;
+        }
+    }
+
+    private static final int MAGIC = 0x414e4e32;
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final int nbrLayers;
+    private final int[] widths;
+    private final int[] weightOffsets;
+    private final int[] biasOffsets;
+    private final DoubleBuffer weights;
+    private final DoubleBuffer biases;
+    private final double[] weightArray;
+    private final double[] biasArray;
+    private final boolean useBias;
+    private final Activation[] activations;
+    private final List<Function<Double, Double>> activationFunctions;
+    private final int maxWidth;
+
+    private final ThreadLocal<double[][]> buffers;
+    private final ThreadLocal<double[][]> batchBuffers;
+
+    private CompiledNetwork(int[] widths, boolean useBias, List<Function<Double, Double>> activationFunctions,
+                            DoubleBuffer weights, DoubleBuffer biases) {
+        this.nbrLayers = widths.length - 1;
+        this.widths = widths;
+        this.useBias = useBias;
+        this.activationFunctions = activationFunctions;
+        this.activations = new Activation[nbrLayers];
+        this.weights = weights;
+        this.biases = biases;
+        this.weightArray = weights.hasArray() ? weights.array() : null;
+        this.biasArray = biases.hasArray() ? biases.array() : null;
+
+        weightOffsets = new int[nbrLayers];
+        biasOffsets = new int[nbrLayers];
+
+        int nbrWeights = 0;
+        int nbrBiases = 0;
+
+        for (int l = 0; l < nbrLayers; l++) {
+            weightOffsets[l] = nbrWeights;
+            biasOffsets[l] = nbrBiases;
+
+            nbrWeights += widths[l] * widths[l + 1];
+            nbrBiases += widths[l + 1];
+            activations[l] = Activation.of(activationFunctions.get(l));
+        }
+
+        if (weights.capacity() != nbrWeights || biases.capacity() != nbrBiases) {
+            throw new IllegalArgumentException("Weights do not agree with layer dimensions");
+        }
+
+        maxWidth = Arrays.stream(widths).max().getAsInt();
+
+        buffers = ThreadLocal.withInitial(() -> new double[][] {new double[maxWidth], new double[maxWidth]});
+        batchBuffers = ThreadLocal.withInitial(() -> new double[][] {new double[0], new double[0]});
+    }
+
+    /**
+     * Compile a list of layers.
+     * @param layers the fully connected layers of a network
+     * @param useBias {@code true} if the layers have bias weights
+     * @param offHeap {@code true} if the weights should be stored in direct memory rather than
+     *                in a heap array
+     * @return a compiled network
+     */
+    static CompiledNetwork compile(List<DenseLayer> layers, boolean useBias, boolean offHeap) {
+        int nbrLayers = layers.size();
+        int[] widths = new int[nbrLayers + 1];
+        List<Function<Double, Double>> activationFunctions = new ArrayList<>(nbrLayers);
+
+        widths[0] = layers.get(0).getWeights().getRows();
+
+        int nbrWeights = 0;
+        int nbrBiases = 0;
+
+        for (int l = 0; l < nbrLayers; l++) {
+            Matrix w = layers.get(l).getWeights();
+
+            if (w.getRows() != widths[l]) {
+                throw new IllegalArgumentException("Layer dimensions do not agree");
+            }
+
+            widths[l + 1] = w.getCols();
+            activationFunctions.add(layers.get(l).getActivationFunction());
+
+            nbrWeights += w.getRows() * w.getCols();
+            nbrBiases += w.getCols();
+        }
+
+        DoubleBuffer weights = allocate(nbrWeights, offHeap);
+        DoubleBuffer biases = allocate(nbrBiases, offHeap);
+
+        for (DenseLayer layer : layers) {
+            Matrix w = layer.getWeights();
+
+            for (int r = 0; r < w.getRows(); r++) {
+                for (int c = 0; c < w.getCols(); c++) {
+                    weights.put(w.get(r, c));
+                }
+            }
+
+            for (int c = 0; c < w.getCols(); c++) {
+                biases.put(useBias ? layer.getBiasWeights().get(0, c) : 0.0);
+            }
+        }
+
+        weights.flip();
+        biases.flip();
+
+        return new CompiledNetwork(widths, useBias, activationFunctions, weights, biases);
+    }
+
+    private static DoubleBuffer allocate(int size, boolean offHeap) {
+        return offHeap ?
+                ByteBuffer.allocateDirect(size * Double.BYTES).order(BYTE_ORDER).asDoubleBuffer() :
+                DoubleBuffer.allocate(size);
+    }
+
+    /**
+     * Get the number of inputs to the network.
+     * @return number of inputs
+     */
+    public int getNbrInputs() {
+        return widths[0];
+    }
+
+    /**
+     * Get the number of outputs from the network.
+     * @return number of outputs
+     */
+    public int getNbrOutputs() {
+        return widths[nbrLayers];
+    }
+
+    /**
+     * Get the size of the weights and biases.
+     * @return number of bytes
+     */
+    public long getWeightBytes() {
+        return (long)(weights.capacity() + biases.capacity()) * Double.BYTES;
+    }
+
+    /**
+     * Check whether the weights are stored outside of the heap.
+     * @return {@code true} if the weights are held in direct or mapped memory
+     */
+    public boolean isOffHeap() {
+        return weights.isDirect();
+    }
+
+    /**
+     * Get a prediction from the network. Each row of the input is treated as a separate sample.
+     * @param input an R-by-N matrix where N is the number of inputs
+     * @return an R-by-M matrix where M is the number of outputs
+     */
+    public Matrix predict(Matrix input) {
+        if (input.getCols() != getNbrInputs()) {
+            throw new IllegalArgumentException("Input dimensions do not agree "
+                    + String.format("%dx%d, expected %d columns", input.getRows(), input.getCols(), getNbrInputs()));
+        }
+
+        double[][] inputs = new double[input.getRows()][];
+        double[][] outputs = new double[input.getRows()][];
+
+        for (int r = 0; r < input.getRows(); r++) {
+            inputs[r] = new double[getNbrInputs()];
+            outputs[r] = new double[getNbrOutputs()];
+
+            for (int c = 0; c < inputs[r].length; c++) {
+                inputs[r][c] = input.get(r, c);
+            }
+        }
+
+        predict(inputs, outputs);
+
+        return new Matrix(outputs);
+    }
+
+    /**
+     * Get predictions for a batch of samples. The batch is passed through the network one layer
+     * at a time so that the weights of a layer are read once for the whole batch.
+     * @param inputs arrays holding at least N inputs each
+     * @param outputs arrays receiving the M outputs of the corresponding input
+     */
+    public void predict(double[][] inputs, double[][] outputs) {
+        int batchSize = inputs.length;
+
+        if (outputs.length != batchSize) {
+            throw new IllegalArgumentException("Number of inputs and outputs do not agree");
+        }
+
+        double[][] buffer = batchBuffers.get();
+
+        if (buffer[0].length < batchSize * maxWidth) {
+            buffer = new double[][] {new double[batchSize * maxWidth], new double[batchSize * maxWidth]};
+            batchBuffers.set(buffer);
+        }
+
+        double[] in = buffer[0];
+        double[] out = buffer[1];
+
+        for (int b = 0; b < batchSize; b++) {
+            System.arraycopy(inputs[b], 0, in, b * widths[0], widths[0]);
+        }
+
+        for (int l = 0; l < nbrLayers; l++) {
+            evaluate(l, in, out, batchSize);
+
+            double[] tmp = in;
+            in = out;
+            out = tmp;
+        }
+
+        for (int b = 0; b < batchSize; b++) {
+            System.arraycopy(in, b * getNbrOutputs(), outputs[b], 0, getNbrOutputs());
+        }
+    }
+
+    /**
+     * Get a prediction for a single sample without allocating any intermediate storage.
+     * @param input array holding at least N inputs
+     * @param output array receiving the M outputs
+     */
+    public void predict(double[] input, double[] output) {
+        double[][] buffer = buffers.get();
+        double[] in = input;
+        double[] out = buffer[0];
+
+        for (int l = 0; l < nbrLayers; l++) {
+            evaluate(l, in, out, 1);
+
+            in = out;
+            out = out == buffer[0] ? buffer[1] : buffer[0];
+        }
+
+        System.arraycopy(in, 0, output, 0, getNbrOutputs());
+    }
+
+    /**
+     * Evaluate one layer for a batch of samples stored back to back in {@code in}. Heap and
+     * off-heap weights have separate loops so that each weight access site only ever sees one
+     * kind of storage.
+     */
+    private void evaluate(int layer, double[] in, double[] out, int batchSize) {
+        int n = widths[layer];
+        int m = widths[layer + 1];
+
+        if (weightArray != null) {
+            multiplyAdd(weightArray, biasArray, weightOffsets[layer], biasOffsets[layer], n, m, in, out, batchSize);
+        } else {
+            multiplyAdd(weights, biases, weightOffsets[layer], biasOffsets[layer], n, m, in, out, batchSize);
+        }
+
+        activate(layer, out, batchSize * m);
+    }
+
+    private static void multiplyAdd(double[] weights, double[] biases, int offset, int biasOffset, int n, int m,
+                                    double[] in, double[] out, int batchSize) {
+        for (int b = 0; b < batchSize; b++) {
+            System.arraycopy(biases, biasOffset, out, b * m, m);
+        }
+
+        for (int i = 0; i < n; i++) {
+            int w = offset + i * m;
+
+            for (int b = 0; b < batchSize; b++) {
+                double x = in[b * n + i];
+                int o = b * m;
+
+                for (int c = 0; c < m; c++) {
+                    out[o + c] += x * weights[w + c];
+                }
+            }
+        }
+    }
+
+    private static void multiplyAdd(DoubleBuffer weights, DoubleBuffer biases, int offset, int biasOffset, int n, int m,
+                                    double[] in, double[] out, int batchSize) {
+        for (int b = 0; b < batchSize; b++) {
+            for (int c = 0; c < m; c++) {
+                out[b * m + c] = biases.get(biasOffset + c);
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            int w = offset + i * m;
+
+            for (int b = 0; b < batchSize; b++) {
+                double x = in[b * n + i];
+                int o = b * m;
+
+                for (int c = 0; c < m; c++) {
+                    out[o + c] += x * weights.get(w + c);
+                }
+            }
+        }
+    }
+
+    private void activate(int layer, double[] values, int length) {
+        switch (activations[layer]) {
+            case SIGMOID:
+                for (int c = 0; c < length; c++) {
+                    values[c] = 1.0 / (1.0 + Math.exp(-values[c]));
+                }
+                break;
+            case HYPTAN:
+                for (int c = 0; c < length; c++) {
+                    double x2 = 2 * values[c];
+                    values[c] = (1 - Math.exp(-x2)) / (1 + Math.exp(x2));
+                }
+                break;
+            default:
+                Function<Double, Double> activationFunction = activationFunctions.get(layer);
+                for (int c = 0; c < length; c++) {
+                    values[c] = activationFunction.apply(values[c]);
+                }
+        }
+    }
+
+    /**
+     * Save the compiled network as a binary model file which can be memory mapped with
+     * {@link #map(Path)}. The {@link Network#SIGMOID} and {@link Network#HYPTAN} activation functions
+     * are saved with the weights, custom activation functions have to be supplied when mapping.
+     * @param path where to save to
+     * @throws IOException if the file could not be written
+     */
+    public void save(Path path) throws IOException {
+        int headerSize = getHeaderSize(nbrLayers);
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + (int)getWeightBytes()).order(BYTE_ORDER);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(useBias ? 1 : 0);
+        buffer.putInt(nbrLayers);
+        for (int width : widths) {
+            buffer.putInt(width);
+        }
+        for (Activation activation : activations) {
+            buffer.putInt(activation.ordinal());
+        }
+
+        buffer.position(headerSize);
+        buffer.asDoubleBuffer().put(weights.duplicate()).put(biases.duplicate());
+
+        Files.write(path, buffer.array());
+    }
+
+    /**
+     * Map a binary model file read-only. The weights stay in the file mapping and are never copied
+     * to the heap.
+     * @param path a file created by {@link #save(Path)} from a network without custom activation functions
+     * @return a compiled network
+     * @throws IOException if the file could not be mapped
+     */
+    public static CompiledNetwork map(Path path) throws IOException {
+        return map(path, null);
+    }
+
+    /**
+     * Map a binary model file read-only. The weights stay in the file mapping and are never copied
+     * to the heap.
+     * @param path a file created by {@link #save(Path)}
+     * @param activationFunction activation function of the layers that were compiled with a custom
+     *                           activation function
+     * @return a compiled network
+     * @throws IOException if the file could not be mapped
+     */
+    public static CompiledNetwork map(Path path, Function<Double, Double> activationFunction) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(BYTE_ORDER);
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a compiled network: " + path);
+            }
+
+            boolean useBias = buffer.getInt() != 0;
+            int nbrLayers = buffer.getInt();
+            int[] widths = new int[nbrLayers + 1];
+
+            for (int l = 0; l <= nbrLayers; l++) {
+                widths[l] = buffer.getInt();
+            }
+
+            int nbrWeights = 0;
+            int nbrBiases = 0;
+
+            for (int l = 0; l < nbrLayers; l++) {
+                nbrWeights += widths[l] * widths[l + 1];
+                nbrBiases += widths[l + 1];
+            }
+
+            List<Function<Double, Double>> activationFunctions = new ArrayList<>(nbrLayers);
+
+            for (int l = 0; l < nbrLayers; l++) {
+                int activation = buffer.getInt();
+
+                if (activation < 0 || activation >= Activation.values().length) {
+                    throw new IOException("Unknown activation function " + activation + ": " + path);
+                }
+
+                switch (Activation.values()[activation]) {
+                    case SIGMOID:
+                        activationFunctions.add(Network.SIGMOID);
+                        break;
+                    case HYPTAN:
+                        activationFunctions.add(Network.HYPTAN);
+                        break;
+                    default:
+                        if (activationFunction == null) {
+                            throw new IOException("Compiled network uses a custom activation function: " + path);
+                        }
+                        activationFunctions.add(activationFunction);
+                }
+            }
+
+            buffer.position(getHeaderSize(nbrLayers));
+            DoubleBuffer data = buffer.slice().order(BYTE_ORDER).asDoubleBuffer();
+
+            if (data.capacity() < nbrWeights + nbrBiases) {
+                throw new IOException("Truncated compiled network: " + path);
+            }
+
+            data.limit(nbrWeights);
+            DoubleBuffer weights = data.slice();
+            data.limit(nbrWeights + nbrBiases).position(nbrWeights);
+            DoubleBuffer biases = data.slice();
+
+            return new CompiledNetwork(widths, useBias, activationFunctions, weights, biases);
+        }
+    }
+
+    private static int getHeaderSize(int nbrLayers) {
+        int size = (4 + 2 * nbrLayers) * Integer.BYTES;
+        return (size + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+    }
+}
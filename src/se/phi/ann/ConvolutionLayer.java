@@ -0,0 +1,267 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+
+/**
+ * A two dimensional convolutional layer, a one dimensional convolution is a convolution with a
+ * height of 1. The layer applies a number of filters to its input, each filter covers all input
+ * channels. Filters are applied at every position where they fit entirely within the input, with a
+ * stride of 1.
+ *
+ * Inputs and outputs are flattened channel by channel, row by row, i.e. element (c, y, x) of an input
+ * with height H and width W is found at index (c * H + y) * W + x.
+ *
+ * The convolution is lowered onto a matrix multiplication. The input is rearranged into a P-by-K
+ * matrix (im2col) with one row per output position P and one column per filter weight K, which is
+ * multiplied by the K-by-F kernel matrix holding one filter per column.
+ */
+class ConvolutionLayer extends Layer {
+
+    static final String TYPE = "convolution";
+
+    private final int channels;
+    private final int height;
+    private final int width;
+    private final int kernelHeight;
+    private final int kernelWidth;
+    private final int nbrFilters;
+    private final int outputHeight;
+    private final int outputWidth;
+    private final boolean useBias;
+    private final Function<Double, Double> activationFunction;
+
+    private Matrix kernel;
+    private Matrix biasWeights;
+    private Matrix columns;
+    private Matrix activations;
+
+    /**
+     * Create a convolutional layer.
+     * @param channels number of input channels
+     * @param height height of the input
+     * @param width width of the input
+     * @param nbrFilters number of filters, i.e. number of output channels
+     * @param kernelHeight height of the filters, at most {@code height}
+     * @param kernelWidth width of the filters, at most {@code width}
+     * @param useBias {@code true} if every filter should have a bias term
+     * @param activationFunction a sigmoid function
+     */
+    ConvolutionLayer(int channels, int height, int width, int nbrFilters, int kernelHeight, int kernelWidth,
+                     boolean useBias, Function<Double, Double> activationFunction) {
+        super(channels * height * width, nbrFilters * (height - kernelHeight + 1) * (width - kernelWidth + 1));
+
+        if (channels < 1 || nbrFilters < 1 || kernelHeight < 1 || kernelWidth < 1
+                || kernelHeight > height || kernelWidth > width) {
+            throw new IllegalArgumentException("Illegal convolution dimensions");
+        }
+
+        this.channels = channels;
+        this.height = height;
+        this.width = width;
+        this.kernelHeight = kernelHeight;
+        this.kernelWidth = kernelWidth;
+        this.nbrFilters = nbrFilters;
+        this.outputHeight = height - kernelHeight + 1;
+        this.outputWidth = width - kernelWidth + 1;
+        this.useBias = useBias;
+        this.activationFunction = activationFunction;
+    }
+
+    @Override
+    void generateWeights(SplittableRandom random, WeightInitialization initialization) {
+        int kernelSize = channels * kernelHeight * kernelWidth;
+        int fanOut = nbrFilters * kernelHeight * kernelWidth;
+
+        kernel = new Matrix(generateWeights(kernelSize, nbrFilters, kernelSize, fanOut, random, initialization));
+
+        if (useBias) {
+            biasWeights = new Matrix(generateWeights(1, nbrFilters, kernelSize, fanOut, random, initialization));
+        }
+    }
+
+    @Override
+    Matrix forward(Matrix input) {
+        if (input.getCols() != getNbrInputs()) {
+            throw new IllegalArgumentException("Input dimensions do not agree "
+                    + String.format("%d, expected %d", input.getCols(), getNbrInputs()));
+        }
+
+        int nbrPositions = outputHeight * outputWidth;
+        double[][] output = new double[input.getRows()][];
+
+        for (int r = 0; r < input.getRows(); r++) {
+            columns = toColumns(input, r);
+            activations = columns.multiplyAddApply(kernel, useBias ? biasWeights : null, activationFunction);
+
+            output[r] = new double[getThickness()];
+
+            for (int f = 0; f < nbrFilters; f++) {
+                for (int p = 0; p < nbrPositions; p++) {
+                    output[r][f * nbrPositions + p] = activations.get(p, f);
+                }
+            }
+        }
+
+        return new Matrix(output);
+    }
+
+    @Override
+    Matrix backward(Matrix error, double learningRate) {
+        int nbrPositions = outputHeight * outputWidth;
+
+        // Error with respect to the weighted sums, one row per output position and one column per filter
+        Matrix delta = new Matrix(nbrPositions, nbrFilters, (p, f) -> {
+            double y = activations.get(p, f);
+            return y * (1 - y) * error.get(f * nbrPositions + p, 0);
+        });
+
+        Matrix columnsError = delta.multiply(kernel.transpose());
+
+        kernel = kernel.lazy()
+                .subtract(columns.lazy().transpose().multiply(delta).scale(learningRate))
+                .evaluate();
+
+        if (useBias) {
+            biasWeights = biasWeights.lazy()
+                    .subtract(Matrix.Ones(1, nbrPositions).lazy().multiply(delta).scale(learningRate))
+                    .evaluate();
+        }
+
+        return fromColumns(columnsError);
+    }
+
+    /**
+     * Rearrange one sample of the input into a P-by-K matrix (im2col).
+     */
+    private Matrix toColumns(Matrix input, int row) {
+        return new Matrix(outputHeight * outputWidth, channels * kernelHeight * kernelWidth, (p, k) -> {
+            int y = p / outputWidth + (k / kernelWidth) % kernelHeight;
+            int x = p % outputWidth + k % kernelWidth;
+            int c = k / (kernelHeight * kernelWidth);
+
+            return input.get(row, (c * height + y) * width + x);
+        });
+    }
+
+    /**
+     * Accumulate a P-by-K matrix back into an N-by-1 input error (col2im), the inverse of
+     * {@link #toColumns(Matrix, int)}.
+     */
+    private Matrix fromColumns(Matrix columnsError) {
+        double[][] inputError = new double[getNbrInputs()][];
+
+        for (int i = 0; i < inputError.length; i++) {
+            inputError[i] = new double[1];
+        }
+
+        for (int p = 0; p < columnsError.getRows(); p++) {
+            for (int k = 0; k < columnsError.getCols(); k++) {
+                int y = p / outputWidth + (k / kernelWidth) % kernelHeight;
+                int x = p % outputWidth + k % kernelWidth;
+                int c = k / (kernelHeight * kernelWidth);
+
+                inputError[(c * height + y) * width + x][0] += columnsError.get(p, k);
+            }
+        }
+
+        return new Matrix(inputError);
+    }
+
+    /**
+     * Get the kernel of this layer.
+     * @return a K-by-F matrix
+     */
+    Matrix getWeights() {
+        return kernel;
+    }
+
+    /**
+     * Get the bias weights of this layer.
+     * @return an 1-by-F matrix
+     */
+    Matrix getBiasWeights() {
+        if (!useBias) {
+            throw new IllegalStateException("Layer was not created with active bias");
+        }
+        return biasWeights;
+    }
+
+    /**
+     * Replace the kernel of this layer.
+     * @param weights a K-by-F matrix
+     * @param biasWeights an 1-by-F matrix, ignored if biases are not used
+     */
+    void setWeights(Matrix weights, Matrix biasWeights) {
+        checkDimensions(weights, kernel);
+
+        this.kernel = weights;
+
+        if (useBias) {
+            this.biasWeights = biasWeights;
+        }
+    }
+
+    @Override
+    State getState() {
+        String header = String.format("%s %d %d %d %d %d %d",
+                TYPE, channels, height, width, nbrFilters, kernelHeight, kernelWidth);
+
+        return new State(header, kernel, useBias ? biasWeights : null);
+    }
+
+    /**
+     * Replace the kernel and bias weights of this layer, convolutional layers are not pruned.
+     * @param state a snapshot of a convolutional layer with the same dimensions
+     */
+    @Override
+    void restore(State state) {
+        checkHeader(state);
+
+        if (state.pruningMask != null) {
+            throw new IllegalArgumentException("Convolutional layers are not pruned");
+        }
+
+        setWeights(state.weights, state.biasWeights);
+    }
+
+    /**
+     * The product of the im2col matrix and the kernel is calculated once per sample.
+     */
+    @Override
+    List<KernelTuner.Product> getProducts(int batchSize) {
+        return Collections.singletonList(new KernelTuner.Product(outputHeight * outputWidth, kernel,
+                useBias ? biasWeights : null, activationFunction, batchSize));
+    }
+
+    /**
+     * Load a layer saved with {@link #getState()}, the type has already been read.
+     * @param scanner scanner attached to an {@code InputStream}
+     * @param useBias {@code true} if a bias matrix is present in the data
+     * @return a layer instance
+     */
+    static ConvolutionLayer load(Scanner scanner, boolean useBias) {
+        int channels = scanner.nextInt();
+        int height = scanner.nextInt();
+        int width = scanner.nextInt();
+        int nbrFilters = scanner.nextInt();
+        int kernelHeight = scanner.nextInt();
+        int kernelWidth = scanner.nextInt();
+
+        ConvolutionLayer layer = new ConvolutionLayer(channels, height, width, nbrFilters, kernelHeight, kernelWidth,
+                useBias, Network.SIGMOID);
+
+        layer.kernel = new Matrix(Layer.loadMatrix(scanner));
+
+        if (useBias) {
+            layer.biasWeights = new Matrix(Layer.loadMatrix(scanner));
+        }
+
+        return layer;
+    }
+}
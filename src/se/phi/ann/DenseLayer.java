@@ -0,0 +1,262 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+import se.phi.math.MatrixExpression;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+
+/**
+ * A fully connected layer, every output is the activation of a weighted sum of all inputs. Fully connected
+ * layers are the only kind of layer that can be compiled, see {@link CompiledNetwork}, or pruned.
+ */
+class DenseLayer extends Layer {
+
+    private final Function<Double, Double> activationFunction;
+    private final boolean useBias;
+
+    private Matrix input;
+    private Matrix weights;
+    private Matrix biasWeights;
+    private Matrix pruningMask;
+
+    /**
+     * Create a fully connected layer.
+     * @param nbrInputs number of inputs to this layer
+     * @param thickness number of neurons in this layer, must be larger than 0
+     * @param useBias {@code true} if a bias term should be used in the output calculation
+     * @param activationFunction a sigmoid function
+     */
+    DenseLayer(int nbrInputs, int thickness, boolean useBias, Function<Double, Double> activationFunction) {
+        super(nbrInputs, thickness);
+        this.activationFunction = activationFunction;
+        this.useBias = useBias;
+    }
+
+    private DenseLayer(double[][] weights, double[][] biasWeights) {
+        super(weights.length, weights[0].length);
+        this.activationFunction = Network.SIGMOID;
+        this.weights = new Matrix(weights);
+
+        useBias = biasWeights != null;
+
+        if (useBias) {
+            this.biasWeights = new Matrix(biasWeights);
+        }
+    }
+
+    /**
+     * Check whether this layer uses a bias term.
+     * @return {@code true} if biases are used
+     */
+    boolean isUsingBias() {
+        return useBias;
+    }
+
+    /**
+     * Get the activation function of this layer.
+     * @return a function
+     */
+    Function<Double, Double> getActivationFunction() {
+        return activationFunction;
+    }
+
+    /**
+     * Generate new weights for the biases if any and the inputs.
+     * @param random generator to draw weights from
+     * @param initialization scheme to draw weights with
+     */
+    @Override
+    void generateWeights(SplittableRandom random, WeightInitialization initialization) {
+        int nbrInputs = getNbrInputs();
+        int thickness = getThickness();
+
+        weights = new Matrix(generateWeights(nbrInputs, thickness, nbrInputs, thickness, random, initialization));
+
+        if (useBias) {
+            biasWeights = new Matrix(generateWeights(1, thickness, nbrInputs, thickness, random, initialization));
+        }
+    }
+
+    @Override
+    Matrix forward(Matrix input) {
+        this.input = input;
+        return input.multiplyAddApply(weights, useBias ? biasWeights : null, activationFunction);
+    }
+
+    @Override
+    Matrix backward(Matrix error, double learningRate) {
+        Matrix backPropagatedError = getOutput().lazy().apply(x -> x * (1 - x)).transpose()
+                .multiplyElementWise(error)
+                .evaluate();
+
+        MatrixExpression updatedWeights = weights.lazy()
+                .subtract(backPropagatedError.lazy().multiply(input).scale(learningRate).transpose());
+
+        weights = (pruningMask != null ? updatedWeights.multiplyElementWise(pruningMask) : updatedWeights).evaluate();
+
+        if (useBias) {
+            biasWeights = biasWeights.lazy()
+                    .subtract(backPropagatedError.lazy().scale(learningRate).transpose())
+                    .evaluate();
+        }
+
+        return weights.multiply(backPropagatedError);
+    }
+
+    /**
+     * Get the weights of this layer.
+     * @return an N-by-M matrix
+     */
+    Matrix getWeights() {
+        return weights;
+    }
+
+    /**
+     * Replace the weights of this layer.
+     * @param weights an N-by-M matrix
+     * @param biasWeights an 1-by-M matrix, ignored if biases are not used
+     */
+    void setWeights(Matrix weights, Matrix biasWeights) {
+        checkDimensions(weights, this.weights);
+
+        this.weights = weights;
+
+        if (useBias) {
+            this.biasWeights = biasWeights;
+        }
+    }
+
+    /**
+     * Get the bias weights of this layer.
+     * @return an 1-by-M matrix
+     */
+    Matrix getBiasWeights() {
+        if (!useBias) {
+            throw new IllegalStateException("Layer was not created with active bias");
+        }
+        return biasWeights;
+    }
+
+    @Override
+    State getState() {
+        return new State(null, weights, useBias ? biasWeights : null, pruningMask);
+    }
+
+    /**
+     * Replace the weights, bias weights and pruning mask of this layer. Pruned weights are set to zero.
+     * @param state a snapshot of a fully connected layer with the same dimensions
+     */
+    @Override
+    void restore(State state) {
+        checkHeader(state);
+        setWeights(state.weights, state.biasWeights);
+
+        if (state.pruningMask != null) {
+            checkDimensions(state.pruningMask, weights);
+            weights = weights.multiplyElementWise(state.pruningMask);
+        }
+
+        pruningMask = state.pruningMask;
+    }
+
+    @Override
+    List<KernelTuner.Product> getProducts(int batchSize) {
+        return Collections.singletonList(new KernelTuner.Product(batchSize, weights, useBias ? biasWeights : null,
+                activationFunction, 1));
+    }
+
+    /**
+     * Set the weights with the smallest magnitude to zero. Pruned weights remain zero when the
+     * layer is trained further.
+     * @param sparsity fraction of the weights to prune, in the range [0, 1]
+     */
+    void prune(double sparsity) {
+        if (sparsity < 0 || sparsity > 1) {
+            throw new IllegalArgumentException("Sparsity must be in the range [0, 1]");
+        }
+
+        int rows = weights.getRows();
+        int cols = weights.getCols();
+        int nbrPruned = (int)(sparsity * rows * cols);
+
+        if (nbrPruned == 0) {
+            return;
+        }
+
+        double[] magnitudes = new double[rows * cols];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                magnitudes[r * cols + c] = Math.abs(weights.get(r, c));
+            }
+        }
+        Arrays.sort(magnitudes);
+
+        double threshold = magnitudes[nbrPruned - 1];
+        int nbrBelow = 0;
+        while (nbrBelow < nbrPruned && magnitudes[nbrBelow] < threshold) {
+            nbrBelow++;
+        }
+
+        double[][] mask = new double[rows][];
+        int nbrAtThreshold = nbrPruned - nbrBelow;
+
+        for (int r = 0; r < rows; r++) {
+            mask[r] = new double[cols];
+
+            for (int c = 0; c < cols; c++) {
+                double magnitude = Math.abs(weights.get(r, c));
+                boolean pruned = magnitude < threshold || (magnitude == threshold && nbrAtThreshold-- > 0);
+                boolean previouslyPruned = pruningMask != null && pruningMask.get(r, c) == 0.0;
+
+                mask[r][c] = pruned || previouslyPruned ? 0.0 : 1.0;
+            }
+        }
+
+        pruningMask = new Matrix(mask);
+        weights = weights.multiplyElementWise(pruningMask);
+    }
+
+    /**
+     * Save layer.
+     * @param outputStream
+     */
+    void save(OutputStream outputStream) {
+        try (PrintStream printStream = new PrintStream(outputStream)) {
+            int rows = weights.getRows();
+            int cols = weights.getCols();
+
+            printStream.format("%d %d\n", rows, cols);
+
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    if (c == 0) {
+                        printStream.print(weights.get(r, c));
+                    } else {
+                        printStream.format(" %f", weights.get(r, c));
+                    }
+                }
+                printStream.println();
+            }
+        }
+    }
+
+    /**
+     * Load a layer saved with {@link #getState()}.
+     * @param scanner scanner attached to an {@code InputStream}
+     * @param useBias {@code true} if a bias matrix is present in the data
+     * @return a layer instance
+     */
+    static DenseLayer load(Scanner scanner, boolean useBias) {
+        double[][] weights = loadMatrix(scanner);
+        double[][] biasWeights = useBias ? loadMatrix(scanner) : null;
+
+        return new DenseLayer(weights, biasWeights);
+    }
+}
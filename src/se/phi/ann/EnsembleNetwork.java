@@ -0,0 +1,284 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * An ensemble of networks evaluated together. The weights of all networks are packed side by side so
+ * that one pass evaluates every network on the shared input.
+ *
+ * The first layers of all networks receive the same input, their weights are concatenated into one
+ * matrix and calculated with a single product. Subsequent layers only depend on the output of the
+ * same network, their weights form a block diagonal matrix of which only the diagonal blocks are
+ * stored and calculated. The outputs of the networks are combined with a {@link Combiner}.
+ *
+ * The networks must have fully connected layers, the same number of layers, inputs and outputs, but
+ * the thickness of their hidden layers may differ. The ensemble is a snapshot of the weights of the
+ * networks. Instances may be shared between threads, every thread gets its own activation buffers.
+ */
+public final class EnsembleNetwork {
+
+    /**
+     * How the outputs of the networks are combined.
+     */
+    public enum Combiner {
+
+        /**
+         * The mean of the outputs of all networks.
+         */
+        AVERAGE,
+
+        /**
+         * Every network votes for its largest output, the result holds the fraction of the votes each
+         * output received.
+         */
+        VOTE
+    }
+
+    private final int nbrModels;
+    private final int nbrLayers;
+    private final int nbrInputs;
+    private final int nbrOutputs;
+    private final Combiner combiner;
+
+    /**
+     * Thickness of layer l of model k is widths[l][k], layer 0 is the input.
+     */
+    private final int[][] widths;
+
+    /**
+     * Offset of the output of model k in the packed activations of layer l.
+     */
+    private final int[][] activationOffsets;
+
+    /**
+     * Offset of the weights of model k for layer l, the first layer is a single concatenated matrix.
+     */
+    private final int[][] weightOffsets;
+
+    private final int[] layerWidths;
+    private final double[] weights;
+    private final double[] biases;
+    private final List<List<Function<Double, Double>>> activationFunctions;
+
+    private final ThreadLocal<double[][]> buffers;
+
+    /**
+     * Create an ensemble.
+     * @param networks networks to evaluate
+     * @param combiner how to combine the outputs of the networks
+     */
+    public EnsembleNetwork(List<Network> networks, Combiner combiner) {
+        if (networks.isEmpty()) {
+            throw new IllegalArgumentException("An ensemble must have at least one network");
+        }
+
+        List<List<DenseLayer>> layers = new ArrayList<>(networks.size());
+        for (Network network : networks) {
+            layers.add(network.getFullyConnectedLayers());
+        }
+
+        this.nbrModels = networks.size();
+        this.nbrLayers = layers.get(0).size();
+        this.combiner = combiner;
+
+        widths = new int[nbrLayers + 1][nbrModels];
+        activationOffsets = new int[nbrLayers + 1][nbrModels];
+        weightOffsets = new int[nbrLayers][nbrModels];
+        layerWidths = new int[nbrLayers + 1];
+        activationFunctions = new ArrayList<>(nbrLayers);
+
+        for (int l = 0; l < nbrLayers; l++) {
+            activationFunctions.add(new ArrayList<>(nbrModels));
+        }
+
+        for (int k = 0; k < nbrModels; k++) {
+            if (layers.get(k).size() != nbrLayers) {
+                throw new IllegalArgumentException("Networks in an ensemble must have the same number of layers");
+            }
+
+            widths[0][k] = layers.get(k).get(0).getWeights().getRows();
+
+            for (int l = 0; l < nbrLayers; l++) {
+                widths[l + 1][k] = layers.get(k).get(l).getWeights().getCols();
+                activationFunctions.get(l).add(layers.get(k).get(l).getActivationFunction());
+            }
+
+            if (widths[0][k] != widths[0][0] || widths[nbrLayers][k] != widths[nbrLayers][0]) {
+                throw new IllegalArgumentException("Networks in an ensemble must have the same number of inputs and outputs");
+            }
+        }
+
+        this.nbrInputs = widths[0][0];
+        this.nbrOutputs = widths[nbrLayers][0];
+        layerWidths[0] = nbrInputs;
+
+        int nbrWeights = 0;
+
+        for (int l = 0; l < nbrLayers; l++) {
+            for (int k = 0; k < nbrModels; k++) {
+                activationOffsets[l + 1][k] = layerWidths[l + 1];
+                layerWidths[l + 1] += widths[l + 1][k];
+
+                weightOffsets[l][k] = nbrWeights;
+                nbrWeights += widths[l][k] * widths[l + 1][k];
+            }
+        }
+
+        weights = new double[nbrWeights];
+        biases = new double[Arrays.stream(layerWidths).skip(1).sum()];
+
+        int biasOffset = 0;
+
+        for (int l = 0; l < nbrLayers; l++) {
+            for (int k = 0; k < nbrModels; k++) {
+                DenseLayer layer = layers.get(k).get(l);
+                Matrix w = layer.getWeights();
+
+                for (int r = 0; r < w.getRows(); r++) {
+                    for (int c = 0; c < w.getCols(); c++) {
+                        if (l == 0) {
+                            // Concatenated, row r holds the weights of input r for every model
+                            weights[r * layerWidths[1] + activationOffsets[1][k] + c] = w.get(r, c);
+                        } else {
+                            weights[weightOffsets[l][k] + r * w.getCols() + c] = w.get(r, c);
+                        }
+                    }
+                }
+
+                if (layer.isUsingBias()) {
+                    Matrix b = layer.getBiasWeights();
+
+                    for (int c = 0; c < b.getCols(); c++) {
+                        biases[biasOffset + activationOffsets[l + 1][k] + c] = b.get(0, c);
+                    }
+                }
+            }
+
+            biasOffset += layerWidths[l + 1];
+        }
+
+        int maxWidth = Arrays.stream(layerWidths).max().getAsInt();
+
+        buffers = ThreadLocal.withInitial(() -> new double[][] {new double[maxWidth], new double[maxWidth]});
+    }
+
+    /**
+     * Get the number of networks in the ensemble.
+     * @return number of networks
+     */
+    public int getNbrModels() {
+        return nbrModels;
+    }
+
+    /**
+     * Get a combined prediction from all networks. Each row of the input is treated as a separate sample.
+     * @param input an R-by-N matrix where N is the number of inputs
+     * @return an R-by-M matrix where M is the number of outputs
+     */
+    public Matrix predict(Matrix input) {
+        if (input.getCols() != nbrInputs) {
+            throw new IllegalArgumentException("Input dimensions do not agree "
+                    + String.format("%dx%d, expected %d columns", input.getRows(), input.getCols(), nbrInputs));
+        }
+
+        double[][] result = new double[input.getRows()][];
+        double[] row = new double[nbrInputs];
+
+        for (int r = 0; r < input.getRows(); r++) {
+            for (int c = 0; c < nbrInputs; c++) {
+                row[c] = input.get(r, c);
+            }
+
+            result[r] = new double[nbrOutputs];
+            combine(evaluate(row), result[r]);
+        }
+
+        return new Matrix(result);
+    }
+
+    /**
+     * Evaluate all networks on one sample.
+     * @return the packed outputs of all networks
+     */
+    private double[] evaluate(double[] input) {
+        double[][] buffer = buffers.get();
+        double[] in = input;
+        double[] out = buffer[0];
+        int biasOffset = 0;
+
+        for (int l = 0; l < nbrLayers; l++) {
+            int width = layerWidths[l + 1];
+
+            System.arraycopy(biases, biasOffset, out, 0, width);
+
+            if (l == 0) {
+                for (int i = 0; i < nbrInputs; i++) {
+                    double x = in[i];
+                    int w = i * width;
+
+                    for (int c = 0; c < width; c++) {
+                        out[c] += x * weights[w + c];
+                    }
+                }
+            } else {
+                for (int k = 0; k < nbrModels; k++) {
+                    int n = widths[l][k];
+                    int m = widths[l + 1][k];
+                    int inOffset = activationOffsets[l][k];
+                    int outOffset = activationOffsets[l + 1][k];
+
+                    for (int i = 0; i < n; i++) {
+                        double x = in[inOffset + i];
+                        int w = weightOffsets[l][k] + i * m;
+
+                        for (int c = 0; c < m; c++) {
+                            out[outOffset + c] += x * weights[w + c];
+                        }
+                    }
+                }
+            }
+
+            for (int k = 0; k < nbrModels; k++) {
+                Function<Double, Double> activationFunction = activationFunctions.get(l).get(k);
+                int outOffset = activationOffsets[l + 1][k];
+
+                for (int c = 0; c < widths[l + 1][k]; c++) {
+                    out[outOffset + c] = activationFunction.apply(out[outOffset + c]);
+                }
+            }
+
+            biasOffset += width;
+            in = out;
+            out = out == buffer[0] ? buffer[1] : buffer[0];
+        }
+
+        return in;
+    }
+
+    private void combine(double[] outputs, double[] result) {
+        for (int k = 0; k < nbrModels; k++) {
+            int offset = activationOffsets[nbrLayers][k];
+
+            if (combiner == Combiner.AVERAGE) {
+                for (int c = 0; c < nbrOutputs; c++) {
+                    result[c] += outputs[offset + c] / nbrModels;
+                }
+            } else {
+                int vote = 0;
+
+                for (int c = 1; c < nbrOutputs; c++) {
+                    if (outputs[offset + c] > outputs[offset + vote]) {
+                        vote = c;
+                    }
+                }
+
+                result[vote] += 1.0 / nbrModels;
+            }
+        }
+    }
+}
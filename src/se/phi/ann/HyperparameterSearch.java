@@ -0,0 +1,248 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Trains a number of candidate networks concurrently and ranks them by their error on validation data
+ * held out from training.
+ *
+ * Candidates are trained in rounds using successive halving. In each round every remaining candidate
+ * is trained further towards its number of epochs and evaluated on the validation data, the worse half
+ * of the candidates is then discarded. Only the candidates surviving all rounds are trained for their
+ * full number of epochs. All candidates share the same training and validation data, which is never
+ * modified.
+ */
+public class HyperparameterSearch {
+
+    /**
+     * A combination of hyperparameters to evaluate.
+     */
+    public static class Candidate {
+
+        private final List<Integer> topology;
+        private final double learningRate;
+        private final int nbrEpochs;
+        private final int nbrBatches;
+        private final boolean useBias;
+        private final Function<Double, Double> activationFunction;
+
+        /**
+         * Create a candidate using biases and the {@link Network#SIGMOID} activation function.
+         * @param topology thickness of the hidden layers, see {@link Network}
+         * @param learningRate learning rate
+         * @param nbrEpochs number of epochs to train a surviving candidate for
+         * @param nbrBatches number of batches per epoch
+         */
+        public Candidate(List<Integer> topology, double learningRate, int nbrEpochs, int nbrBatches) {
+            this(topology, learningRate, nbrEpochs, nbrBatches, true, Network.SIGMOID);
+        }
+
+        /**
+         * Create a candidate.
+         * @param topology thickness of the hidden layers, see {@link Network}
+         * @param learningRate learning rate
+         * @param nbrEpochs number of epochs to train a surviving candidate for
+         * @param nbrBatches number of batches per epoch
+         * @param useBias {@code true} if the layers should include a bias term
+         * @param activationFunction a sigmoid activation function
+         */
+        public Candidate(List<Integer> topology, double learningRate, int nbrEpochs, int nbrBatches,
+                         boolean useBias, Function<Double, Double> activationFunction) {
+            if (nbrEpochs < 1 || nbrBatches < 1) {
+                throw new IllegalArgumentException("Number of epochs and batches must be larger than 0");
+            }
+
+            this.topology = new ArrayList<>(topology);
+            this.learningRate = learningRate;
+            this.nbrEpochs = nbrEpochs;
+            this.nbrBatches = nbrBatches;
+            this.useBias = useBias;
+            this.activationFunction = activationFunction;
+        }
+
+        public List<Integer> getTopology() { return Collections.unmodifiableList(topology); }
+        public double getLearningRate() { return learningRate; }
+        public int getNbrEpochs() { return nbrEpochs; }
+        public int getNbrBatches() { return nbrBatches; }
+
+        @Override
+        public String toString() {
+            return String.format("topology=%s learningRate=%s nbrEpochs=%d nbrBatches=%d useBias=%b",
+                    topology, learningRate, nbrEpochs, nbrBatches, useBias);
+        }
+    }
+
+    /**
+     * The outcome of training a candidate.
+     */
+    public static class Result {
+
+        private final Candidate candidate;
+        private final Network network;
+        private int epochsTrained;
+        private double trainingError = Double.NaN;
+        private double error = Double.NaN;
+
+        Result(Candidate candidate, Network network) {
+            this.candidate = candidate;
+            this.network = network;
+        }
+
+        public Candidate getCandidate() { return candidate; }
+
+        /**
+         * Get the trained network.
+         * @return a network
+         */
+        public Network getNetwork() { return network; }
+
+        /**
+         * Get the number of epochs the candidate was trained before it finished or was discarded.
+         * @return number of epochs
+         */
+        public int getEpochsTrained() { return epochsTrained; }
+
+        /**
+         * Get the quadratic mean error of the network on the validation data. Candidates are ranked by
+         * this error.
+         * @return the error
+         */
+        public double getError() { return error; }
+
+        /**
+         * Get the quadratic mean error on the training data of the last epoch trained, as reported by
+         * {@link Network#train(TrainingData, double, int, int)}.
+         * @return the error
+         */
+        public double getTrainingError() { return trainingError; }
+
+        /**
+         * Check whether the candidate survived all rounds.
+         * @return {@code true} if the candidate was trained for all of its epochs
+         */
+        public boolean isCompleted() { return epochsTrained == candidate.nbrEpochs; }
+
+        @Override
+        public String toString() {
+            return String.format("error=%.6f trainingError=%.6f epochs=%d/%d %s",
+                    error, trainingError, epochsTrained, candidate.nbrEpochs, candidate);
+        }
+    }
+
+    private static final Comparator<Result> BY_ERROR = Comparator.comparingDouble(Result::getError);
+
+    private final int nbrThreads;
+    private final int nbrRounds;
+
+    /**
+     * Create a new search.
+     * @param nbrThreads maximum number of candidates trained at the same time
+     * @param nbrRounds number of successive halving rounds, 1 trains all candidates fully
+     */
+    public HyperparameterSearch(int nbrThreads, int nbrRounds) {
+        if (nbrThreads < 1 || nbrRounds < 1) {
+            throw new IllegalArgumentException("Number of threads and rounds must be larger than 0");
+        }
+
+        this.nbrThreads = nbrThreads;
+        this.nbrRounds = nbrRounds;
+    }
+
+    /**
+     * Train and rank the candidates.
+     * @param trainingData data to train on
+     * @param validationData data to rank the candidates by, should not overlap the training data
+     * @param candidates candidates to evaluate
+     * @return one result per candidate ordered by the number of epochs trained and then by validation error
+     * @throws InterruptedException if interrupted while waiting for training to finish
+     */
+    public List<Result> search(TrainingData trainingData, TrainingData validationData, List<Candidate> candidates)
+            throws InterruptedException {
+        if (validationData.getNbrInputs() != trainingData.getNbrInputs()
+                || validationData.getNbrOutputs() != trainingData.getNbrOutputs()
+                || validationData.getTrainingData().length == 0) {
+            throw new IllegalArgumentException("Validation data does not agree with training data");
+        }
+
+        List<Result> remaining = new ArrayList<>();
+        List<Result> discarded = new ArrayList<>();
+
+        for (Candidate candidate : candidates) {
+            Network network = new Network(trainingData.getNbrInputs(), candidate.topology, trainingData.getNbrOutputs(),
+                    candidate.useBias, candidate.activationFunction);
+            remaining.add(new Result(candidate, network));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nbrThreads);
+
+        try {
+            for (int round = 0; round < nbrRounds && !remaining.isEmpty(); round++) {
+                int divisor = 1 << (nbrRounds - 1 - round);
+                List<Callable<Void>> tasks = new ArrayList<>();
+
+                for (Result result : remaining) {
+                    int target = Math.max(1, (result.candidate.nbrEpochs + divisor - 1) / divisor);
+                    tasks.add(() -> {
+                        train(result, trainingData, validationData, target);
+                        return null;
+                    });
+                }
+
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+
+                remaining.sort(BY_ERROR);
+
+                if (round < nbrRounds - 1) {
+                    List<Result> worse = remaining.subList((remaining.size() + 1) / 2, remaining.size());
+                    discarded.addAll(worse);
+                    worse.clear();
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Training failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        discarded.sort(Comparator.comparingInt(Result::getEpochsTrained).reversed().thenComparing(BY_ERROR));
+        remaining.addAll(discarded);
+
+        return remaining;
+    }
+
+    private static void train(Result result, TrainingData trainingData, TrainingData validationData, int targetEpochs) {
+        int nbrEpochs = targetEpochs - result.epochsTrained;
+
+        if (nbrEpochs > 0) {
+            Candidate candidate = result.candidate;
+            result.trainingError = result.network.train(trainingData, candidate.learningRate, nbrEpochs, candidate.nbrBatches);
+            result.error = evaluate(result.network, validationData);
+            result.epochsTrained = targetEpochs;
+        }
+    }
+
+    private static double evaluate(Network network, TrainingData validationData) {
+        double quadError = 0;
+        TrainingDataItem[] items = validationData.getTrainingData();
+
+        for (TrainingDataItem item : items) {
+            Matrix error = network.predict(item.getInputData()).subtract(item.getReferenceData());
+            quadError += error.multiply(error.transpose()).get(0, 0);
+        }
+
+        return quadError / items.length;
+    }
+}
@@ -0,0 +1,219 @@
+package se.phi.ann;
+
+import se.phi.math.KernelConfiguration;
+import se.phi.math.Matrix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Picks the fastest {@link KernelConfiguration} for a network on the current host.
+ *
+ * The block size and parallel threshold of matrix products are benchmarked on the fused product, bias and
+ * activation of every layer of the network, with the shapes, weights and activation functions of the
+ * layers, see {@link Matrix#multiplyAddApply(Matrix, Matrix, Function, KernelConfiguration)}. Plain
+ * products count the same multiply-adds and use the same blocking, hence share these parameters. The
+ * parallel threshold of element-wise operations counts elements rather than multiply-adds and is
+ * benchmarked separately, on additions of matrices shaped like the weights, as the weight updates of
+ * training are. The candidates are passed to the kernels directly, hence other threads keep using the
+ * current configuration while tuning.
+ * The result may be persisted to a profile file, keyed by the shapes and the number of processors, so that
+ * later starts on the same host reuse it instead of benchmarking again.
+ */
+public class KernelTuner {
+
+    private static final int[] BLOCK_SIZES = {Integer.MAX_VALUE, 256, 128, 64, 32};
+    private static final long[] PARALLEL_THRESHOLDS = {Long.MAX_VALUE, 1L << 20, 1L << 17, 1L << 14};
+    private static final long[] ELEMENT_WISE_THRESHOLDS = {Long.MAX_VALUE, 1L << 20, 1L << 17, 1L << 14};
+
+    private static final long MEASUREMENT_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int WARMUP_ROUNDS = 3;
+
+    private KernelTuner() {}
+
+    /**
+     * Benchmark the candidate configurations and select the fastest one, see
+     * {@link Matrix#setKernelConfiguration(KernelConfiguration)}. The configuration applies to the whole
+     * process once selected.
+     * @param network network whose layers to benchmark
+     * @param batchSize number of samples predicted together
+     * @return the selected configuration
+     */
+    public static KernelConfiguration tune(Network network, int batchSize) {
+        List<Product> products = getProducts(network, batchSize);
+        KernelConfiguration best = KernelConfiguration.DEFAULT;
+        double bestTime = Double.MAX_VALUE;
+
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run(products, best);
+            runElementWise(products, best);
+        }
+
+        for (int blockSize : BLOCK_SIZES) {
+            for (long parallelThreshold : PARALLEL_THRESHOLDS) {
+                KernelConfiguration candidate = new KernelConfiguration(blockSize, parallelThreshold);
+                double time = measure(() -> run(products, candidate));
+
+                if (time < bestTime) {
+                    bestTime = time;
+                    best = candidate;
+                }
+            }
+        }
+
+        int blockSize = best.getBlockSize();
+        long parallelThreshold = best.getParallelThreshold();
+        bestTime = Double.MAX_VALUE;
+
+        for (long elementWiseThreshold : ELEMENT_WISE_THRESHOLDS) {
+            KernelConfiguration candidate = new KernelConfiguration(blockSize, parallelThreshold, elementWiseThreshold);
+            double time = measure(() -> runElementWise(products, candidate));
+
+            if (time < bestTime) {
+                bestTime = time;
+                best = candidate;
+            }
+        }
+
+        Matrix.setKernelConfiguration(best);
+        return best;
+    }
+
+    /**
+     * Select the configuration stored in a profile file for this network and host, or tune and store it
+     * in the profile if there is none.
+     * @param profile the profile file, created if it does not exist
+     * @param network network whose layer shapes to benchmark
+     * @param batchSize number of samples predicted together
+     * @return the selected configuration
+     * @throws IOException if the profile could not be read or written
+     */
+    public static KernelConfiguration loadOrTune(Path profile, Network network, int batchSize) throws IOException {
+        Properties properties = new Properties();
+
+        if (Files.exists(profile)) {
+            try (InputStream inputStream = Files.newInputStream(profile)) {
+                properties.load(inputStream);
+            }
+        }
+
+        String key = getProfileKey(network, batchSize);
+        String value = properties.getProperty(key);
+
+        if (value != null) {
+            KernelConfiguration configuration = KernelConfiguration.parse(value);
+            Matrix.setKernelConfiguration(configuration);
+            return configuration;
+        }
+
+        KernelConfiguration configuration = tune(network, batchSize);
+        properties.setProperty(key, configuration.toString());
+
+        Path tmp = profile.resolveSibling(profile.getFileName() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(tmp)) {
+            properties.store(outputStream, "Matrix kernel configurations");
+        }
+        Files.move(tmp, profile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return configuration;
+    }
+
+    private static String getProfileKey(Network network, int batchSize) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(System.getProperty("os.arch")).append('.')
+                .append(Runtime.getRuntime().availableProcessors()).append("cpu.")
+                .append(batchSize);
+
+        for (Product product : getProducts(network, batchSize)) {
+            builder.append('.').append(product.weights.getRows()).append('x').append(product.weights.getCols());
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Get the products calculated by the forward pass of the layers, see {@link Layer#getProducts(int)}.
+     */
+    private static List<Product> getProducts(Network network, int batchSize) {
+        List<Product> products = new ArrayList<>();
+
+        for (Layer layer : network.getLayers()) {
+            products.addAll(layer.getProducts(batchSize));
+        }
+
+        return products;
+    }
+
+    /**
+     * Get the mean time of one pass.
+     */
+    private static double measure(Runnable pass) {
+        pass.run();
+
+        long start = System.nanoTime();
+        long elapsed;
+        int rounds = 0;
+
+        do {
+            pass.run();
+            rounds++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASUREMENT_NANOS);
+
+        return (double)elapsed / rounds;
+    }
+
+    private static void run(List<Product> products, KernelConfiguration configuration) {
+        for (Product product : products) {
+            for (int n = 0; n < product.repetitions; n++) {
+                product.input.multiplyAddApply(product.weights, product.bias, product.activationFunction, configuration);
+            }
+        }
+    }
+
+    private static void runElementWise(List<Product> products, KernelConfiguration configuration) {
+        for (Product product : products) {
+            product.weights.add(product.weights, configuration);
+        }
+    }
+
+    /**
+     * A fused product, bias and activation calculated by a layer, applied to random input.
+     */
+    static final class Product {
+
+        private final Matrix input;
+        private final Matrix weights;
+        private final Matrix bias;
+        private final Function<Double, Double> activationFunction;
+        private final int repetitions;
+
+        /**
+         * Create a product.
+         * @param rows number of rows of the input
+         * @param weights an N-by-M matrix
+         * @param bias an 1-by-M matrix or {@code null}
+         * @param activationFunction activation function applied to the result
+         * @param repetitions how many times the product is calculated for a batch
+         */
+        Product(int rows, Matrix weights, Matrix bias, Function<Double, Double> activationFunction, int repetitions) {
+            SplittableRandom random = new SplittableRandom(0);
+
+            this.input = new Matrix(rows, weights.getRows(), (r, c) -> random.nextDouble());
+            this.weights = weights;
+            this.bias = bias;
+            this.activationFunction = activationFunction;
+            this.repetitions = repetitions;
+        }
+    }
+}
@@ -2,68 +2,50 @@ package se.phi.ann;
 
 import se.phi.math.Matrix;
 
-import java.io.OutputStream;
-import java.io.PrintStream;
+import java.util.InputMismatchException;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Scanner;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.function.Function;
-
-class Layer {
-
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * A layer of a network. Layers are chained, the first layer receives the input of the network and
+ * the last layer produces its output. A layer is classified according to this matrix
+ *
+ *              | Has successor | Has predecessor
+ *              +---------------+----------------
+ * First layer  | Yes           | No
+ *              +---------------+----------------
+ * Hidden layer | Yes           | Yes
+ *              +---------------+----------------
+ * Output layer | No            | Yes
+ *              +---------------+----------------
+ *
+ * A network with a single layer has a layer which is both first and output layer. The kind of layer is
+ * decided by the subclass, see {@link DenseLayer}, {@link ConvolutionLayer} and {@link MaxPoolingLayer}.
+ */
+abstract class Layer {
+
+    private static final long PARALLEL_INITIALIZATION_THRESHOLD = 1 << 16;
+
+    private final int nbrInputs;
     private final int thickness;
-    private Function<Double, Double> activationFunction;
 
     private Layer predecessor;
     private Layer successor;
 
-    private Matrix input;
-    private Matrix weights;
-    private Matrix biasWeights;
     private Matrix output;
-    private boolean useBias;
-
-    /**
-     * Represents a layer in the network. A network consists of an input layer,
-     * an output layer and any number of hidden layers. A layer is classified according
-     * to this matrix
-     *
-     *             | Has successor | Has predecessor
-     *             +---------------+----------------
-     * Input layer | Yes           | No
-     *             +---------------+----------------
-     * Hidden layer| Yes           | Yes
-     *             +---------------+----------------
-     * Output layer| No            | Yes
-     *             +---------------+----------------
-     *
-     * @param thickness number of neurons in this layer, must be larger than 0
-     * @param useBias {@code true} if a bias term should be used in the output calculation
-     * @param activationFunction a sigmoid function
-     */
-    Layer(int thickness, boolean useBias, Function<Double, Double> activationFunction) {
-        this.thickness = thickness;
-        this.activationFunction = activationFunction;
-        this.useBias = useBias;
-    }
 
     /**
-     *  Creates an input layer which is essentially a pass through layer.
+     * Create a layer.
+     * @param nbrInputs number of inputs to this layer
+     * @param thickness number of outputs of this layer, must be larger than 0
      */
-    Layer(int thickness) {
-        this(thickness, false, null);
-    }
-
-    private Layer(double[][] weights, double[][] biasWeights) {
-        this.activationFunction = Network.SIGMOID;
-        this.weights = new Matrix(weights);
-        this.thickness = this.weights.rows;
-
-        useBias = biasWeights != null;
-
-        if (useBias) {
-            this.biasWeights = new Matrix(biasWeights);
-        }
+    Layer(int nbrInputs, int thickness) {
+        this.nbrInputs = nbrInputs;
+        this.thickness = thickness;
     }
 
     /**
@@ -75,9 +57,15 @@ class Layer {
     }
 
     /**
-     * Set the successor layer to this layer. Call {@link #generateWeights() generateWeights}
-     * after {@link #setSuccessor(Layer) setSuccessor}.
-     *
+     * Get the number of inputs to this layer.
+     * @return number of inputs
+     */
+    int getNbrInputs() {
+        return nbrInputs;
+    }
+
+    /**
+     * Set the successor layer to this layer.
      * @param successor a layer
      */
     void setSuccessor(Layer successor) {
@@ -92,10 +80,6 @@ class Layer {
         return Optional.ofNullable(successor);
     }
 
-    private double getInitialWeight() {
-        return Math.random() - 0.5;
-    }
-
     /**
      * Set the predecessor layer to this layer.
      * @param predecessor a layer
@@ -105,14 +89,42 @@ class Layer {
     }
 
     /**
-     * Generate new weights for the biases if any and inputs received from the predecessor layer.
+     * Generate new initial weights for the layer, if it has any.
+     * @param random generator to draw weights from
+     * @param initialization scheme to draw weights with
      */
-    void generateWeights() {
-        weights = new Matrix(predecessor.getThickness(), getThickness(), (r, c) -> getInitialWeight());
+    abstract void generateWeights(SplittableRandom random, WeightInitialization initialization);
 
-        if (useBias) {
-            biasWeights = new Matrix(1, thickness, (r, c) -> getInitialWeight());
+    /**
+     * Draw a matrix of initial weights, see {@link #generateWeights(SplittableRandom, WeightInitialization)}.
+     * Large matrices are initialized in parallel, the weights only depend on the state of the generator.
+     * @param fanIn number of inputs contributing to an output
+     * @param fanOut number of outputs an input contributes to
+     */
+    static double[][] generateWeights(int rows, int cols, int fanIn, int fanOut,
+                                      SplittableRandom random, WeightInitialization initialization) {
+        double[][] m = new double[rows][];
+        SplittableRandom[] rowRandoms = new SplittableRandom[rows];
+
+        for (int r = 0; r < rows; r++) {
+            rowRandoms[r] = random.split();
+        }
+
+        IntStream indices = IntStream.range(0, rows);
+
+        if ((long)rows * cols >= PARALLEL_INITIALIZATION_THRESHOLD) {
+            indices = indices.parallel();
         }
+
+        indices.forEach(r -> {
+            m[r] = new double[cols];
+
+            for (int c = 0; c < cols; c++) {
+                m[r][c] = initialization.getWeight(rowRandoms[r], fanIn, fanOut);
+            }
+        });
+
+        return m;
     }
 
     /**
@@ -121,17 +133,19 @@ class Layer {
      * @return the resulting output vector (1-by-M matrix) from the last layer in the network
      */
     Matrix feedForward(Matrix input) {
-        this.input = input;
-
-        if (predecessor != null) {
-            output = (useBias ? input.multiply(weights).add(biasWeights) : input.multiply(weights)).apply(activationFunction);
-        } else {
-            output = input;
-        }
+        output = forward(input);
 
         return successor != null ? successor.feedForward(output) : output;
     }
 
+    /**
+     * Calculate the output of this layer. The layer keeps what {@link #backward(Matrix, double)} needs
+     * of the last input.
+     * @param input an R-by-N matrix, one sample per row
+     * @return an R-by-M matrix
+     */
+    abstract Matrix forward(Matrix input);
+
     /**
      * Update weights and biases based to the error calculated by the successor, back propagate
      * the error calculated by this layer to it's predecessor.
@@ -140,23 +154,22 @@ class Layer {
      *                     are in the range (0,1]
      */
     void backPropagate(Matrix error, double learningRate) {
-        if (predecessor != null) {
-            Matrix derivative = Matrix.diagonalize(output.apply(x -> x * (1 - x)));
-
-            Matrix backPropagatedError = derivative.multiply(error);
-
-            Matrix deltaWeights = backPropagatedError.multiply(input).scale(learningRate).transpose();
-            weights = weights.subtract(deltaWeights);
-
-            if (useBias) {
-                Matrix deltaBiasWeights = backPropagatedError.scale(learningRate).transpose();
-                biasWeights = biasWeights.subtract(deltaBiasWeights);
-            }
+        Matrix backPropagatedError = backward(error, learningRate);
 
-            predecessor.backPropagate(weights.multiply(backPropagatedError), learningRate);
+        if (predecessor != null) {
+            predecessor.backPropagate(backPropagatedError, learningRate);
         }
     }
 
+    /**
+     * Update weights and biases based on the error calculated by the successor for the last sample fed
+     * forward.
+     * @param error an M-by-1 error
+     * @param learningRate learning rate
+     * @return the N-by-1 error to propagate to the predecessor
+     */
+    abstract Matrix backward(Matrix error, double learningRate);
+
     /**
      * Get the output produced by this layer.
      * @return a vector (1-by-M) matrix
@@ -166,45 +179,45 @@ class Layer {
     }
 
     /**
-     * Get the weights of this layer.
-     * @return an N-by-M matrix
+     * Get a snapshot of the parameters of this layer. Matrices are immutable, hence the snapshot is not
+     * affected by further training.
+     * @return a snapshot
      */
-    Matrix getWeights() {
-        return weights;
-    }
+    abstract State getState();
 
     /**
-     * Get the bias weights of this layer.
-     * @return an 1-by-M matrix or {@code null} if biases are not used
+     * Replace the parameters of this layer with a snapshot of a layer of the same kind and dimensions.
+     * @param state a snapshot, as returned by {@link #getState()}
      */
-    Matrix getBiasWeights() {
-        if (!useBias) {
-            throw new IllegalStateException("Layer was not created with active bias");
-        }
-        return biasWeights;
-    }
+    abstract void restore(State state);
 
     /**
-     * Save layer.
-     * @param outputStream
+     * Get the matrix products calculated by {@link #forward(Matrix)} for a batch of samples.
+     * @param batchSize number of samples
+     * @return the products, empty if the layer does not multiply by weights
      */
-    void save(OutputStream outputStream) {
-        try (PrintStream printStream = new PrintStream(outputStream)) {
-            int rows = weights.getRows();
-            int cols = weights.getCols();
+    abstract List<KernelTuner.Product> getProducts(int batchSize);
 
-            printStream.format("%d %d\n", rows, cols);
+    /**
+     * Check that a snapshot describes a layer of the same kind as this layer.
+     * @param state a snapshot
+     */
+    void checkHeader(State state) {
+        if (!Objects.equals(getState().header, state.header)) {
+            throw new IllegalArgumentException("Saved layer does not match the layer it replaces");
+        }
+    }
 
-            for (int r = 0; r < rows; r++) {
-                for (int c = 0; c < cols; c++) {
-                    if (c == 0) {
-                        printStream.print(weights.get(r, c));
-                    } else {
-                        printStream.format(" %f", weights.get(r, c));
-                    }
-                }
-                printStream.println();
-            }
+    /**
+     * Check that a matrix has the dimensions of the matrix it replaces.
+     * @param matrix the new matrix
+     * @param expected the matrix it replaces
+     */
+    static void checkDimensions(Matrix matrix, Matrix expected) {
+        if (matrix.getRows() != expected.getRows() || matrix.getCols() != expected.getCols()) {
+            throw new IllegalArgumentException("Matrix dimensions do not agree "
+                    + String.format("%dx%d, expected %dx%d", matrix.getRows(), matrix.getCols(),
+                    expected.getRows(), expected.getCols()));
         }
     }
 
@@ -215,13 +228,23 @@ class Layer {
      * @return an layer instance
      */
     static Layer load(Scanner scanner, boolean useBias) {
-        double[][] weights = loadMatrix(scanner);
-        double[][] biasWeights = useBias ? loadMatrix(scanner) : null;
+        if (!scanner.hasNextInt()) {
+            String type = scanner.next();
+
+            switch (type) {
+                case ConvolutionLayer.TYPE:
+                    return ConvolutionLayer.load(scanner, useBias);
+                case MaxPoolingLayer.TYPE:
+                    return MaxPoolingLayer.load(scanner);
+                default:
+                    throw new InputMismatchException("Unknown layer type " + type);
+            }
+        }
 
-        return new Layer(weights, biasWeights);
+        return DenseLayer.load(scanner, useBias);
     }
 
-    private static double[][] loadMatrix(Scanner scanner) {
+    static double[][] loadMatrix(Scanner scanner) {
         int rows = scanner.nextInt();
         int cols = scanner.nextInt();
 
@@ -237,4 +260,33 @@ class Layer {
 
         return m;
     }
+
+    /**
+     * The parameters of a layer as saved by {@link Network#save(java.io.OutputStream)}.
+     */
+    static final class State {
+
+        /**
+         * Line describing a layer other than a fully connected layer, {@code null} for fully connected layers.
+         */
+        final String header;
+        final Matrix weights;
+        final Matrix biasWeights;
+
+        /**
+         * Mask of the pruned weights, {@code null} if no weights are pruned. Not saved with the network.
+         */
+        final Matrix pruningMask;
+
+        State(String header, Matrix weights, Matrix biasWeights) {
+            this(header, weights, biasWeights, null);
+        }
+
+        State(String header, Matrix weights, Matrix biasWeights, Matrix pruningMask) {
+            this.header = header;
+            this.weights = weights;
+            this.biasWeights = biasWeights;
+            this.pruningMask = pruningMask;
+        }
+    }
 }
@@ -0,0 +1,82 @@
+package se.phi.ann;
+
+import java.util.function.Function;
+
+/**
+ * Describes a layer of a {@link Network}, see
+ * {@link Network#Network(int, java.util.List, boolean, Function, WeightInitialization, long)}.
+ */
+public abstract class LayerDefinition {
+
+    private LayerDefinition() {}
+
+    /**
+     * Create the layer.
+     * @param nbrInputs number of outputs of the preceding layer
+     */
+    abstract Layer create(int nbrInputs, boolean useBias, Function<Double, Double> activationFunction);
+
+    /**
+     * A fully connected layer.
+     * @param thickness number of neurons
+     * @return a layer definition
+     */
+    public static LayerDefinition dense(int thickness) {
+        return new LayerDefinition() {
+            @Override
+            Layer create(int nbrInputs, boolean useBias, Function<Double, Double> activationFunction) {
+                return new DenseLayer(nbrInputs, thickness, useBias, activationFunction);
+            }
+        };
+    }
+
+    /**
+     * A two dimensional convolutional layer, see {@link ConvolutionLayer} for the layout of inputs and outputs.
+     * The layer has {@code nbrFilters * (height - kernelHeight + 1) * (width - kernelWidth + 1)} outputs.
+     * @param channels number of input channels
+     * @param height height of the input, 1 for a one dimensional convolution
+     * @param width width of the input
+     * @param nbrFilters number of filters, i.e. number of output channels
+     * @param kernelHeight height of the filters
+     * @param kernelWidth width of the filters
+     * @return a layer definition
+     */
+    public static LayerDefinition convolution(int channels, int height, int width, int nbrFilters,
+                                              int kernelHeight, int kernelWidth) {
+        return new LayerDefinition() {
+            @Override
+            Layer create(int nbrInputs, boolean useBias, Function<Double, Double> activationFunction) {
+                checkNbrInputs(nbrInputs, channels * height * width);
+                return new ConvolutionLayer(channels, height, width, nbrFilters, kernelHeight, kernelWidth,
+                        useBias, activationFunction);
+            }
+        };
+    }
+
+    /**
+     * A two dimensional max pooling layer with non-overlapping windows. The layer has
+     * {@code channels * (height / poolHeight) * (width / poolWidth)} outputs.
+     * @param channels number of input channels
+     * @param height height of the input, 1 for one dimensional pooling
+     * @param width width of the input
+     * @param poolHeight height of the windows
+     * @param poolWidth width of the windows
+     * @return a layer definition
+     */
+    public static LayerDefinition maxPooling(int channels, int height, int width, int poolHeight, int poolWidth) {
+        return new LayerDefinition() {
+            @Override
+            Layer create(int nbrInputs, boolean useBias, Function<Double, Double> activationFunction) {
+                checkNbrInputs(nbrInputs, channels * height * width);
+                return new MaxPoolingLayer(channels, height, width, poolHeight, poolWidth);
+            }
+        };
+    }
+
+    private static void checkNbrInputs(int nbrInputs, int expected) {
+        if (nbrInputs != expected) {
+            throw new IllegalArgumentException(
+                    String.format("Layer expects %d inputs but the preceding layer has %d outputs", expected, nbrInputs));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+
+/**
+ * A two dimensional max pooling layer. Every channel of the input is divided into non-overlapping
+ * windows and the output holds the largest value of each window, rows and columns that do not fill
+ * a whole window are dropped. The layer has no weights and no activation function.
+ *
+ * Inputs and outputs are flattened the same way as for {@link ConvolutionLayer}.
+ */
+class MaxPoolingLayer extends Layer {
+
+    static final String TYPE = "maxpooling";
+
+    private final int channels;
+    private final int height;
+    private final int width;
+    private final int poolHeight;
+    private final int poolWidth;
+    private final int outputHeight;
+    private final int outputWidth;
+
+    private int[] maxIndices;
+
+    /**
+     * Create a max pooling layer.
+     * @param channels number of input channels
+     * @param height height of the input
+     * @param width width of the input
+     * @param poolHeight height of the windows, at most {@code height}
+     * @param poolWidth width of the windows, at most {@code width}
+     */
+    MaxPoolingLayer(int channels, int height, int width, int poolHeight, int poolWidth) {
+        super(channels * height * width, channels * (height / poolHeight) * (width / poolWidth));
+
+        if (channels < 1 || poolHeight < 1 || poolWidth < 1 || poolHeight > height || poolWidth > width) {
+            throw new IllegalArgumentException("Illegal pooling dimensions");
+        }
+
+        this.channels = channels;
+        this.height = height;
+        this.width = width;
+        this.poolHeight = poolHeight;
+        this.poolWidth = poolWidth;
+        this.outputHeight = height / poolHeight;
+        this.outputWidth = width / poolWidth;
+    }
+
+    /**
+     * Pooling layers have no weights to generate.
+     */
+    @Override
+    void generateWeights(SplittableRandom random, WeightInitialization initialization) {
+    }
+
+    @Override
+    Matrix forward(Matrix input) {
+        if (input.getCols() != getNbrInputs()) {
+            throw new IllegalArgumentException("Input dimensions do not agree "
+                    + String.format("%d, expected %d", input.getCols(), getNbrInputs()));
+        }
+
+        double[][] output = new double[input.getRows()][];
+        maxIndices = new int[getThickness()];
+
+        for (int r = 0; r < input.getRows(); r++) {
+            output[r] = new double[getThickness()];
+
+            for (int c = 0; c < channels; c++) {
+                for (int oy = 0; oy < outputHeight; oy++) {
+                    for (int ox = 0; ox < outputWidth; ox++) {
+                        int o = (c * outputHeight + oy) * outputWidth + ox;
+                        int maxIndex = -1;
+                        double max = Double.NEGATIVE_INFINITY;
+
+                        for (int y = oy * poolHeight; y < (oy + 1) * poolHeight; y++) {
+                            for (int x = ox * poolWidth; x < (ox + 1) * poolWidth; x++) {
+                                int i = (c * height + y) * width + x;
+
+                                if (maxIndex < 0 || input.get(r, i) > max) {
+                                    max = input.get(r, i);
+                                    maxIndex = i;
+                                }
+                            }
+                        }
+
+                        output[r][o] = max;
+                        maxIndices[o] = maxIndex;
+                    }
+                }
+            }
+        }
+
+        return new Matrix(output);
+    }
+
+    @Override
+    Matrix backward(Matrix error, double learningRate) {
+        double[][] inputError = new double[getNbrInputs()][];
+
+        for (int i = 0; i < inputError.length; i++) {
+            inputError[i] = new double[1];
+        }
+
+        for (int o = 0; o < maxIndices.length; o++) {
+            inputError[maxIndices[o]][0] += error.get(o, 0);
+        }
+
+        return new Matrix(inputError);
+    }
+
+    @Override
+    State getState() {
+        String header = String.format("%s %d %d %d %d %d", TYPE, channels, height, width, poolHeight, poolWidth);
+
+        return new State(header, null, null);
+    }
+
+    /**
+     * Check that a snapshot describes a pooling layer with the same dimensions, there are no parameters
+     * to replace.
+     * @param state a snapshot
+     */
+    @Override
+    void restore(State state) {
+        checkHeader(state);
+
+        if (state.pruningMask != null) {
+            throw new IllegalArgumentException("Pooling layers are not pruned");
+        }
+    }
+
+    @Override
+    List<KernelTuner.Product> getProducts(int batchSize) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Load a layer saved with {@link #getState()}, the type has already been read.
+     * @param scanner scanner attached to an {@code InputStream}
+     * @return a layer instance
+     */
+    static MaxPoolingLayer load(Scanner scanner) {
+        int channels = scanner.nextInt();
+        int height = scanner.nextInt();
+        int width = scanner.nextInt();
+        int poolHeight = scanner.nextInt();
+        int poolWidth = scanner.nextInt();
+
+        return new MaxPoolingLayer(channels, height, width, poolHeight, poolWidth);
+    }
+}
@@ -0,0 +1,298 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache of loaded and compiled networks keyed by model id and version.
+ *
+ * The cache is bounded by the total size of the weights of the networks it holds, the least recently
+ * used networks are evicted first. When several threads ask for a network that is not loaded only
+ * one of them loads it, the others wait for the result. Each model id has a current version which
+ * can be replaced atomically with {@link #publish(String, int)}, predictions already running on the
+ * previous version complete on the previous version. Current versions are never evicted, hence the
+ * cache may grow beyond its bound when the current versions alone do not fit.
+ */
+public class ModelRegistry {
+
+    /**
+     * Source of saved networks, as written by {@link Network#save(java.io.OutputStream)}.
+     */
+    public interface ModelSource {
+
+        /**
+         * Open a saved network.
+         * @param modelId id of the model
+         * @param version version of the model
+         * @return a stream positioned at the start of the saved network, closed by the registry
+         * @throws IOException if the model could not be opened
+         */
+        InputStream open(String modelId, int version) throws IOException;
+    }
+
+    private final ModelSource source;
+    private final long maxWeightBytes;
+
+    private final Map<ModelKey, CompiledNetwork> networks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<ModelKey, CompletableFuture<CompiledNetwork>> loading = new ConcurrentHashMap<>();
+    private final Map<String, Published> currentVersions = new HashMap<>();
+    private long weightBytes;
+
+    /**
+     * Create a new registry.
+     * @param source where to load networks from
+     * @param maxWeightBytes upper bound of the total size of the weights of all cached networks
+     */
+    public ModelRegistry(ModelSource source, long maxWeightBytes) {
+        if (maxWeightBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+
+        this.source = source;
+        this.maxWeightBytes = maxWeightBytes;
+    }
+
+    /**
+     * Make a version the current version of a model. The version is loaded before it is made
+     * current, hence callers of {@link #get(String)} never wait for the new version to load.
+     * Versions only move forward, when several versions are published concurrently the newest
+     * one becomes current whatever order they finish loading in.
+     * @param modelId id of the model
+     * @param version version to make current
+     * @throws IOException if the version could not be loaded
+     * @throws IllegalStateException if a newer version is already current
+     */
+    public void publish(String modelId, int version) throws IOException {
+        CompiledNetwork network = get(modelId, version);
+
+        synchronized (this) {
+            Published current = currentVersions.get(modelId);
+
+            if (current != null && current.version > version) {
+                throw new IllegalStateException(String.format(
+                        "Version %d of model %s is older than the current version %d",
+                        version, modelId, current.version));
+            }
+
+            ModelKey key = new ModelKey(modelId, version);
+            CompiledNetwork cached = networks.get(key);
+
+            if (cached != null) {
+                network = cached;
+            }
+
+            currentVersions.put(modelId, new Published(version, network));
+
+            if (cached == null) {
+                insert(key, network);
+            }
+        }
+    }
+
+    /**
+     * Get the current version of a model.
+     * @param modelId id of the model
+     * @return a compiled network
+     */
+    public synchronized CompiledNetwork get(String modelId) {
+        Published current = currentVersions.get(modelId);
+
+        if (current == null) {
+            throw new IllegalArgumentException("No version published for model " + modelId);
+        }
+
+        return current.network;
+    }
+
+    /**
+     * Get a specific version of a model, loading it if it is not cached.
+     * @param modelId id of the model
+     * @param version version of the model
+     * @return a compiled network
+     * @throws IOException if the network could not be loaded
+     */
+    public CompiledNetwork get(String modelId, int version) throws IOException {
+        ModelKey key = new ModelKey(modelId, version);
+        CompiledNetwork network = lookup(key);
+
+        if (network != null) {
+            return network;
+        }
+
+        CompletableFuture<CompiledNetwork> future = new CompletableFuture<>();
+        CompletableFuture<CompiledNetwork> pending = loading.putIfAbsent(key, future);
+
+        if (pending != null) {
+            return await(pending);
+        }
+
+        try {
+            network = lookup(key);
+
+            if (network == null) {
+                network = load(key);
+                insert(key, network);
+            }
+
+            future.complete(network);
+            return network;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * Get a prediction from the current version of a model.
+     * @param modelId id of the model
+     * @param input input data
+     * @return the predicted output
+     */
+    public Matrix predict(String modelId, Matrix input) {
+        return get(modelId).predict(input);
+    }
+
+    /**
+     * Remove all cached versions of a model except the current version.
+     * @param modelId id of the model
+     */
+    public synchronized void evict(String modelId) {
+        Iterator<Map.Entry<ModelKey, CompiledNetwork>> iterator = networks.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<ModelKey, CompiledNetwork> entry = iterator.next();
+
+            if (entry.getKey().modelId.equals(modelId) && !isCurrent(entry.getKey())) {
+                weightBytes -= entry.getValue().getWeightBytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached networks.
+     * @return number of networks
+     */
+    public synchronized int size() {
+        return networks.size();
+    }
+
+    /**
+     * Get the total size of the weights of all cached networks.
+     * @return number of bytes
+     */
+    public synchronized long getWeightBytes() {
+        return weightBytes;
+    }
+
+    private synchronized CompiledNetwork lookup(ModelKey key) {
+        return networks.get(key);
+    }
+
+    private synchronized void insert(ModelKey key, CompiledNetwork network) {
+        CompiledNetwork previous = networks.put(key, network);
+
+        if (previous != null) {
+            weightBytes -= previous.getWeightBytes();
+        }
+
+        weightBytes += network.getWeightBytes();
+
+        Iterator<Map.Entry<ModelKey, CompiledNetwork>> iterator = networks.entrySet().iterator();
+
+        while (weightBytes > maxWeightBytes && iterator.hasNext()) {
+            Map.Entry<ModelKey, CompiledNetwork> eldest = iterator.next();
+
+            if (eldest.getKey().equals(key) || isCurrent(eldest.getKey())) {
+                continue;
+            }
+
+            weightBytes -= eldest.getValue().getWeightBytes();
+            iterator.remove();
+        }
+    }
+
+    private boolean isCurrent(ModelKey key) {
+        Published current = currentVersions.get(key.modelId);
+        return current != null && current.version == key.version;
+    }
+
+    private CompiledNetwork load(ModelKey key) throws IOException {
+        try (InputStream inputStream = source.open(key.modelId, key.version)) {
+            return Network.load(inputStream).compile();
+        }
+    }
+
+    private static CompiledNetwork await(CompletableFuture<CompiledNetwork> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for model to load");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+
+            throw new IOException("Failed to load model", cause);
+        }
+    }
+
+    private static final class Published {
+
+        private final int version;
+        private final CompiledNetwork network;
+
+        Published(int version, CompiledNetwork network) {
+            this.version = version;
+            this.network = network;
+        }
+    }
+
+    private static final class ModelKey {
+
+        private final String modelId;
+        private final int version;
+
+        ModelKey(String modelId, int version) {
+            this.modelId = Objects.requireNonNull(modelId);
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ModelKey)) {
+                return false;
+            }
+
+            ModelKey o = (ModelKey)obj;
+            return version == o.version && modelId.equals(o.modelId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * modelId.hashCode() + version;
+        }
+    }
+}
@@ -17,12 +17,14 @@ public class Network {
     public static final Function<Double, Double> HYPTAN  =
             (x) -> { double x2 = 2 * x; return (1 - Math.exp(-x2)) / (1 + Math.exp(x2)); };
 
-    private Layer inputLayer;
+    private Layer firstLayer;
     private Layer outputLayer;
     private boolean useBias;
+    private volatile long modificationCount;
 
     /**
-     * Create a new neural network.
+     * Create a new neural network. The weights are initialized with {@link WeightInitialization#UNIFORM}
+     * from a random seed.
      *
      * @param nbrInputs number of inputs to the network
      * @param topology a representation of the hidden layers. The number of items in the list represents the number of
@@ -32,39 +34,92 @@ public class Network {
      * @param activationFunction a sigmoid activation function
      */
     public Network(int nbrInputs, List<Integer> topology, int nbrOutputs, boolean useBias, Function<Double, Double> activationFunction) {
-        inputLayer = new Layer(nbrInputs, useBias, activationFunction);
-        outputLayer = new Layer(nbrOutputs, useBias, activationFunction);
+        this(nbrInputs, topology, nbrOutputs, useBias, activationFunction,
+                WeightInitialization.UNIFORM, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Create a new neural network. Networks created with the same arguments have identical initial weights.
+     *
+     * @param nbrInputs number of inputs to the network
+     * @param topology a representation of the hidden layers. The number of items in the list represents the number of
+     *                 hidden layers and each item represents the thickness of the corresponding layer.
+     * @param nbrOutputs number of outputs from the network
+     * @param useBias {@code true} if the layers should include a bias term
+     * @param activationFunction a sigmoid activation function
+     * @param initialization how the initial weights are drawn
+     * @param seed seed of the generator the initial weights are drawn from
+     */
+    public Network(int nbrInputs, List<Integer> topology, int nbrOutputs, boolean useBias, Function<Double, Double> activationFunction,
+                   WeightInitialization initialization, long seed) {
+        this(nbrInputs, toLayerDefinitions(topology, nbrOutputs), useBias, activationFunction, initialization, seed);
+    }
+
+    /**
+     * Create a new neural network from arbitrary layers, such as convolutional and pooling layers.
+     * Networks created with the same arguments have identical initial weights.
+     *
+     * @param nbrInputs number of inputs to the network
+     * @param layers the hidden layers followed by the output layer. The number of inputs of each layer
+     *               must agree with the number of outputs of its predecessor.
+     * @param useBias {@code true} if the layers should include a bias term
+     * @param activationFunction a sigmoid activation function
+     * @param initialization how the initial weights are drawn
+     * @param seed seed of the generator the initial weights are drawn from
+     */
+    public Network(int nbrInputs, List<LayerDefinition> layers, boolean useBias, Function<Double, Double> activationFunction,
+                   WeightInitialization initialization, long seed) {
+        if (layers.isEmpty()) {
+            throw new IllegalArgumentException("A network must have an output layer");
+        }
+
         this.useBias = useBias;
-        Layer predecessor = inputLayer;
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Layer> created = new ArrayList<>(layers.size());
+        int nbrLayerInputs = nbrInputs;
+
+        for (LayerDefinition definition : layers) {
+            Layer layer = definition.create(nbrLayerInputs, useBias, activationFunction);
+            layer.generateWeights(random.split(), initialization);
+            created.add(layer);
+            nbrLayerInputs = layer.getThickness();
+        }
+
+        link(created);
+    }
+
+    private static List<LayerDefinition> toLayerDefinitions(List<Integer> topology, int nbrOutputs) {
+        List<LayerDefinition> layers = new ArrayList<>();
 
         for (int thickness : topology) {
-            Layer layer = new Layer(thickness, useBias, activationFunction);
-            layer.setPredecessor(predecessor);
-            layer.generateWeights();
-            predecessor.setSuccessor(layer);
-            predecessor = layer;
+            layers.add(LayerDefinition.dense(thickness));
         }
+        layers.add(LayerDefinition.dense(nbrOutputs));
 
-        outputLayer.setPredecessor(predecessor);
-        outputLayer.generateWeights();
-        predecessor.setSuccessor(outputLayer);
+        return layers;
     }
 
-    private Network(List<Layer> layers) {
-        int nbrInputs = layers.get(0).getThickness();
-        inputLayer = new Layer(nbrInputs);
-        outputLayer = layers.remove(layers.size() - 1);
+    private Network(List<Layer> layers, boolean useBias) {
+        this.useBias = useBias;
+        link(layers);
+    }
 
-        Layer predecessor = inputLayer;
+    private void link(List<Layer> layers) {
+        firstLayer = layers.get(0);
+        outputLayer = layers.get(layers.size() - 1);
 
-        for (Layer layer : layers) {
-            layer.setPredecessor(predecessor);
-            predecessor.setSuccessor(layer);
-            predecessor = layer;
+        for (int l = 1; l < layers.size(); l++) {
+            layers.get(l).setPredecessor(layers.get(l - 1));
+            layers.get(l - 1).setSuccessor(layers.get(l));
         }
+    }
 
-        outputLayer.setPredecessor(predecessor);
-        predecessor.setSuccessor(outputLayer);
+    /**
+     * Get a counter which changes whenever the weights of the network change.
+     * @return a modification count
+     */
+    long getModificationCount() {
+        return modificationCount;
     }
 
     /**
@@ -73,8 +128,7 @@ public class Network {
      * @return the predicted output.
      */
     public Matrix predict(Matrix input) {
-        inputLayer.feedForward(input);
-        return outputLayer.getOutput();
+        return firstLayer.feedForward(input);
     }
 
     /**
@@ -87,18 +141,63 @@ public class Network {
      * @return the quadratic mean error resulting from training the network.
      */
     public double train(TrainingData trainingData, double learningRate, int nbrEpochs, int nbrBatches) {
+        return train(trainingData, learningRate, nbrEpochs, nbrBatches, null);
+    }
+
+    /**
+     * Train the network while taking checkpoints. If the checkpoint file exists when training starts the
+     * weights, and pruned weights, are restored from it and training resumes at the epoch and batch where
+     * the checkpoint was taken. An epoch resumed part way trains the batches of the shuffle it was
+     * interrupted in. A final checkpoint is taken when training completes, resuming from it does not train
+     * any further unless {@code nbrEpochs} is increased and returns the error recorded in the checkpoint.
+     * @param trainingData data to train the network on
+     * @param learningRate how fast the network should attempt to learn, suitable values are in the range (0, 1]
+     * @param nbrEpochs how many times the training data should be passed through the network
+     * @param nbrBatches how many batches the training data should be segmented into. Training data is
+     *                   shuffled and segmented before being passed through the network.
+     * @param checkpointer where and how often to take checkpoints, or {@code null} for no checkpoints
+     * @return the quadratic mean error resulting from training the network.
+     */
+    public double train(TrainingData trainingData, double learningRate, int nbrEpochs, int nbrBatches,
+                        Checkpointer checkpointer) {
         double quadError = Double.MAX_VALUE;
-        long iteration;
+        long iteration = 1;
+        int startEpoch = 0;
+        int startBatch = 0;
+        long startSeed = 0;
+
+        if (checkpointer != null) {
+            Checkpointer.Progress progress = checkpointer.restore(this);
+
+            if (progress != null) {
+                startEpoch = progress.epoch;
+                startBatch = progress.batch;
+                startSeed = progress.seed;
+                quadError = progress.error;
+                iteration = progress.iteration;
+            }
+        }
 
-        for (int epoch = 0; epoch < nbrEpochs; epoch++) {
-            Collection<TrainingDataItem[]> miniBatches = getMiniBatches(trainingData.getTrainingData(), nbrBatches);
+        for (int epoch = startEpoch; epoch < nbrEpochs; epoch++) {
+            boolean resumed = epoch == startEpoch && startBatch > 0;
+            long seed = resumed ? startSeed : ThreadLocalRandom.current().nextLong();
+            Collection<TrainingDataItem[]> miniBatches = getMiniBatches(trainingData.getTrainingData(), nbrBatches, seed);
 
-            quadError = 0;
-            iteration = 1;
+            if (!resumed) {
+                quadError = 0;
+                iteration = 1;
+            }
+
+            int batchIndex = 0;
 
             for (TrainingDataItem[] batch : miniBatches) {
+                if (epoch == startEpoch && batchIndex < startBatch) {
+                    batchIndex++;
+                    continue;
+                }
+
                 for (TrainingDataItem item : batch) {
-                    Matrix output = inputLayer.feedForward(item.getInputData());
+                    Matrix output = firstLayer.feedForward(item.getInputData());
                     Matrix reference = item.getReferenceData();
                     Matrix error = output.subtract(reference);
                     Matrix errorTranspose = error.transpose();
@@ -107,15 +206,29 @@ public class Network {
                     iteration += 1;
 
                     outputLayer.backPropagate(errorTranspose, learningRate);
+                    modificationCount++;
+                }
+
+                batchIndex++;
+
+                if (checkpointer != null) {
+                    checkpointer.batchCompleted(this, new Checkpointer.Progress(
+                            batchIndex < nbrBatches ? epoch : epoch + 1, batchIndex % nbrBatches, seed, quadError, iteration));
                 }
             }
         }
 
+        if (checkpointer != null) {
+            checkpointer.checkpoint(this, new Checkpointer.Progress(Math.max(nbrEpochs, startEpoch), 0, 0, quadError, iteration));
+        }
+
         return quadError;
     }
 
-    private Collection<TrainingDataItem[]> getMiniBatches(TrainingDataItem[] trainingData, int nbrOfBatches) {
-        shuffle(trainingData);
+    private Collection<TrainingDataItem[]> getMiniBatches(TrainingDataItem[] trainingData, int nbrOfBatches, long seed) {
+        // Shuffle a copy, the training data may be shared with networks trained concurrently
+        trainingData = Arrays.copyOf(trainingData, trainingData.length);
+        shuffle(trainingData, new SplittableRandom(seed));
 
         int batchSize = trainingData.length / nbrOfBatches;
 
@@ -128,9 +241,7 @@ public class Network {
         return batches;
     }
 
-    private void shuffle(TrainingDataItem[] data) {
-        Random random = ThreadLocalRandom.current();
-
+    private void shuffle(TrainingDataItem[] data, SplittableRandom random) {
         for (int i = data.length - 1; i > 0; i--) {
             int swapIndex = random.nextInt(i);
 
@@ -140,20 +251,86 @@ public class Network {
         }
     }
 
-    private void getTopology(List<Matrix> topology, Layer layer) {
-        topology.add(layer.getWeights());
+    /**
+     * Get the weights, and bias weights if used, of all layers. Matrices are immutable, hence the
+     * returned list is a consistent snapshot of the network.
+     */
+    List<Layer.State> getTopology() {
+        List<Layer.State> topology = new ArrayList<>();
+        getLayers().forEach(layer -> topology.add(layer.getState()));
+        return topology;
+    }
+
+    /**
+     * Get the layers of the network, from the first layer to the output layer.
+     */
+    List<Layer> getLayers() {
+        List<Layer> layers = new ArrayList<>();
+        Optional<Layer> layer = Optional.of(firstLayer);
+
+        while (layer.isPresent()) {
+            layers.add(layer.get());
+            layer = layer.get().getSuccessor();
+        }
+
+        return layers;
+    }
+
+    /**
+     * Compile the network into a flat execution plan for fast inference. The plan is a snapshot
+     * of the current weights.
+     * @return a compiled network
+     */
+    public CompiledNetwork compile() {
+        return compile(false);
+    }
+
+    /**
+     * Compile the network into a flat execution plan for fast inference. The plan is a snapshot
+     * of the current weights.
+     * @param offHeap {@code true} if the weights should be stored in direct memory rather than on the heap
+     * @return a compiled network
+     */
+    public CompiledNetwork compile(boolean offHeap) {
+        return CompiledNetwork.compile(getFullyConnectedLayers(), useBias, offHeap);
+    }
 
-        if (useBias) {
-            topology.add(layer.getBiasWeights());
+    /**
+     * Get the layers of a network of fully connected layers only.
+     * @throws UnsupportedOperationException if the network has other kinds of layers
+     */
+    List<DenseLayer> getFullyConnectedLayers() {
+        List<DenseLayer> layers = new ArrayList<>();
+
+        for (Layer layer : getLayers()) {
+            if (!(layer instanceof DenseLayer)) {
+                throw new UnsupportedOperationException("Only networks of fully connected layers are supported");
+            }
+
+            layers.add((DenseLayer)layer);
         }
 
-        layer.getSuccessor().ifPresent(successor -> getTopology(topology, successor));
+        return layers;
     }
 
-    private List<Matrix> getTopology() {
-        List<Matrix> topology = new ArrayList<>();
-        inputLayer.getSuccessor().ifPresent(successor -> getTopology(topology, successor));
-        return topology;
+    /**
+     * Prune the weights of every layer, the weights with the smallest magnitude in each layer are set
+     * to zero. Pruned weights remain zero if the network is trained further, which may be used to
+     * fine-tune the remaining weights. Biases are not pruned.
+     * @param sparsity fraction of the weights of each layer to prune, in the range [0, 1]
+     */
+    public void prune(double sparsity) {
+        getFullyConnectedLayers().forEach(layer -> layer.prune(sparsity));
+        modificationCount++;
+    }
+
+    /**
+     * Convert the network into a network with sparse weight matrices for fast inference of a
+     * pruned network. The sparse network is a snapshot of the current weights.
+     * @return a sparse network
+     */
+    public SparseNetwork compileSparse() {
+        return new SparseNetwork(getFullyConnectedLayers(), useBias);
     }
 
     /**
@@ -162,20 +339,26 @@ public class Network {
      */
     public void save(OutputStream outputStream) {
         try (PrintStream printStream = new PrintStream(outputStream)) {
+            save(getTopology(), printStream);
+        }
+    }
 
-            List<Matrix> topology = getTopology();
-            printStream.println(useBias);
-            printStream.println(useBias ? topology.size() / 2 : topology.size());
-
-            Iterator<Matrix> iterator = topology.iterator();
-            while (iterator.hasNext()) {
-                Matrix weights = iterator.next();
-                outputMatrix(weights, printStream);
+    /**
+     * Save a snapshot of the network taken with {@link #getTopology()}.
+     */
+    void save(List<Layer.State> topology, PrintStream printStream) {
+        printStream.println(useBias);
+        printStream.println(topology.size());
 
-                if (useBias) {
-                    Matrix biasWeights = iterator.next();
-                    outputMatrix(biasWeights, printStream);
-                }
+        for (Layer.State layer : topology) {
+            if (layer.header != null) {
+                printStream.println(layer.header);
+            }
+            if (layer.weights != null) {
+                outputMatrix(layer.weights, printStream);
+            }
+            if (layer.biasWeights != null) {
+                outputMatrix(layer.biasWeights, printStream);
             }
         }
     }
@@ -187,16 +370,66 @@ public class Network {
         printStream.format("%d %d\n", rows, cols);
         for (int r = 0; r < rows; r++) {
             for (int c = 0; c < cols; c++) {
-                if (c == 0) {
-                    printStream.print(matrix.get(r, c));
-                } else {
-                    printStream.format(" %f", matrix.get(r, c));
+                if (c > 0) {
+                    printStream.print(' ');
                 }
+                printStream.print(matrix.get(r, c));
             }
             printStream.println();
         }
     }
 
+    /**
+     * Replace the weights of all layers with weights saved by {@link #save(OutputStream)}. The saved
+     * network must have the same dimensions as this network. Pruned weights remain pruned.
+     * @param scanner scanner attached to the saved network
+     */
+    void restore(Scanner scanner) {
+        boolean savedUseBias = scanner.nextBoolean();
+        int nbrLayers = scanner.nextInt();
+        List<Layer> layers = getLayers();
+
+        if (savedUseBias != useBias || nbrLayers != layers.size()) {
+            throw new IllegalArgumentException("Saved network does not match the topology of this network");
+        }
+
+        for (Layer layer : layers) {
+            Layer.State saved = Layer.load(scanner, useBias).getState();
+            layer.restore(new Layer.State(saved.header, saved.weights, saved.biasWeights, layer.getState().pruningMask));
+        }
+
+        modificationCount++;
+    }
+
+    /**
+     * Save the pruning masks of a snapshot taken with {@link #getTopology()}. Layers without pruned weights
+     * are saved as empty matrices.
+     */
+    void savePruningMasks(List<Layer.State> topology, PrintStream printStream) {
+        for (Layer.State layer : topology) {
+            if (layer.pruningMask != null) {
+                outputMatrix(layer.pruningMask, printStream);
+            } else {
+                printStream.println("0 0");
+            }
+        }
+    }
+
+    /**
+     * Replace the pruning masks of all layers with masks saved by {@link #savePruningMasks(List, PrintStream)}.
+     * @param scanner scanner attached to the saved masks
+     */
+    void restorePruningMasks(Scanner scanner) {
+        for (Layer layer : getLayers()) {
+            double[][] mask = Layer.loadMatrix(scanner);
+            Layer.State state = layer.getState();
+            layer.restore(new Layer.State(state.header, state.weights, state.biasWeights,
+                    mask.length > 0 ? new Matrix(mask) : null));
+        }
+
+        modificationCount++;
+    }
+
     /**
      * Load a network.
      * @param inputStream where to load from.
@@ -214,7 +447,7 @@ public class Network {
                 layers.add(layer);
             }
 
-            return new Network(layers);
+            return new Network(layers, useBias);
         }
     }
 }
@@ -0,0 +1,111 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of predictions in front of a {@link Network}, for inputs which are predicted
+ * repeatedly. The least recently used predictions are evicted first. The cache is cleared
+ * automatically when the weights of the network change, e.g. by training or pruning.
+ *
+ * Inputs are matched exactly, or after being rounded to a multiple of a quantum so that nearly
+ * identical inputs share a prediction. The cache is thread safe, predictions are serialized.
+ */
+public class PredictionCache {
+
+    private final Network network;
+    private final double quantum;
+    private final Map<Matrix, Matrix> predictions;
+
+    private long modificationCount;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Create a cache matching inputs exactly.
+     * @param network network to predict with
+     * @param maxEntries maximum number of cached predictions
+     */
+    public PredictionCache(Network network, int maxEntries) {
+        this(network, maxEntries, 0.0);
+    }
+
+    /**
+     * Create a cache matching inputs after rounding.
+     * @param network network to predict with
+     * @param maxEntries maximum number of cached predictions
+     * @param quantum inputs are rounded to the nearest multiple of {@code quantum} before being matched,
+     *                and predicted, 0 to match exactly
+     */
+    public PredictionCache(Network network, int maxEntries, double quantum) {
+        if (maxEntries < 1 || quantum < 0) {
+            throw new IllegalArgumentException("Illegal cache size or quantum");
+        }
+
+        this.network = network;
+        this.quantum = quantum;
+        this.modificationCount = network.getModificationCount();
+        this.predictions = new LinkedHashMap<Matrix, Matrix>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Matrix, Matrix> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get a prediction from the network, or from the cache if the input has been predicted before.
+     * @param input input data
+     * @return the predicted output
+     */
+    public synchronized Matrix predict(Matrix input) {
+        if (network.getModificationCount() != modificationCount) {
+            predictions.clear();
+            modificationCount = network.getModificationCount();
+        }
+
+        Matrix key = quantum > 0 ? input.apply(x -> Math.round(x / quantum) * quantum) : input;
+        Matrix prediction = predictions.get(key);
+
+        if (prediction != null) {
+            hitCount++;
+            return prediction;
+        }
+
+        missCount++;
+        prediction = network.predict(key);
+        predictions.put(key.copy(), prediction);
+
+        return prediction;
+    }
+
+    /**
+     * Remove all cached predictions.
+     */
+    public synchronized void clear() {
+        predictions.clear();
+    }
+
+    public synchronized int size() {
+        return predictions.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the fraction of predictions served from the cache.
+     * @return a hit rate in the range [0, 1], 0 if nothing has been predicted
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0.0 : (double)hitCount / total;
+    }
+}
@@ -0,0 +1,51 @@
+package se.phi.ann;
+
+import se.phi.math.Matrix;
+import se.phi.math.SparseMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * An immutable network with weights stored as sparse matrices, see {@link Network#prune(double)}.
+ * Inference only visits the non-zero weights, hence both memory and time are proportional to the
+ * number of weights remaining after pruning. Instances may be shared between threads.
+ */
+public final class SparseNetwork {
+
+    private final List<SparseMatrix> weights = new ArrayList<>();
+    private final List<Matrix> biasWeights = new ArrayList<>();
+    private final List<Function<Double, Double>> activationFunctions = new ArrayList<>();
+
+    SparseNetwork(List<DenseLayer> layers, boolean useBias) {
+        for (DenseLayer layer : layers) {
+            weights.add(SparseMatrix.of(layer.getWeights()));
+            biasWeights.add(useBias ? layer.getBiasWeights() : null);
+            activationFunctions.add(layer.getActivationFunction());
+        }
+    }
+
+    /**
+     * Get the number of non-zero weights, biases excluded.
+     * @return number of weights
+     */
+    public int getNbrNonZeros() {
+        return weights.stream().mapToInt(SparseMatrix::getNbrNonZeros).sum();
+    }
+
+    /**
+     * Get a prediction from the network. Each row of the input is treated as a separate sample.
+     * @param input an R-by-N matrix where N is the number of inputs
+     * @return an R-by-M matrix where M is the number of outputs
+     */
+    public Matrix predict(Matrix input) {
+        Matrix output = input;
+
+        for (int l = 0; l < weights.size(); l++) {
+            output = output.multiplyAddApply(weights.get(l), biasWeights.get(l), activationFunctions.get(l));
+        }
+
+        return output;
+    }
+}
@@ -0,0 +1,55 @@
+package se.phi.ann;
+
+import java.util.SplittableRandom;
+
+/**
+ * Schemes for drawing the initial weights of a layer.
+ */
+public enum WeightInitialization {
+
+    /**
+     * Uniformly distributed in [-0.5, 0.5).
+     */
+    UNIFORM {
+        @Override
+        double getLimit(int nbrInputs, int nbrOutputs) {
+            return 0.5;
+        }
+    },
+
+    /**
+     * Xavier (Glorot) initialization, uniformly distributed in [-l, l) where l = sqrt(6 / (inputs + outputs)).
+     * Suitable for sigmoid and hyperbolic tangent activation functions.
+     */
+    XAVIER {
+        @Override
+        double getLimit(int nbrInputs, int nbrOutputs) {
+            return Math.sqrt(6.0 / (nbrInputs + nbrOutputs));
+        }
+    },
+
+    /**
+     * He initialization, uniformly distributed in [-l, l) where l = sqrt(6 / inputs). Suitable for
+     * rectifying activation functions.
+     */
+    HE {
+        @Override
+        double getLimit(int nbrInputs, int nbrOutputs) {
+            return Math.sqrt(6.0 / nbrInputs);
+        }
+    };
+
+    abstract double getLimit(int nbrInputs, int nbrOutputs);
+
+    /**
+     * Draw an initial weight.
+     * @param random generator to draw from
+     * @param nbrInputs number of inputs to the layer
+     * @param nbrOutputs number of outputs from the layer
+     * @return a weight
+     */
+    double getWeight(SplittableRandom random, int nbrInputs, int nbrOutputs) {
+        double limit = getLimit(nbrInputs, nbrOutputs);
+        return random.nextDouble(-limit, limit);
+    }
+}
@@ -0,0 +1,200 @@
+package se.phi.ann.server;
+
+import se.phi.ann.CompiledNetwork;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent single sample predictions into batches. A batch is run as soon as it holds
+ * {@code maxBatchSize} samples or when the first sample in it has waited {@code maxWait}, whichever
+ * comes first. Batches are evaluated on a dedicated thread. At most {@code maxPending} samples wait
+ * for their prediction at any time, further samples are rejected until earlier ones complete.
+ */
+public class BatchingPredictor implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private static final long POLL_INTERVAL_MS = 100;
+    private static final Request CLOSE = new Request(null);
+
+    private final CompiledNetwork network;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+
+    private final Semaphore pending;
+    private final BlockingQueue<Request> queue;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    /**
+     * Create a new predictor, with at most {@link #DEFAULT_MAX_PENDING} pending samples, and start
+     * its worker thread.
+     * @param network network to predict with
+     * @param maxBatchSize maximum number of samples in a batch, must be larger than 0
+     * @param maxWait maximum time a sample waits for more samples to arrive
+     * @param unit unit of {@code maxWait}
+     */
+    public BatchingPredictor(CompiledNetwork network, int maxBatchSize, long maxWait, TimeUnit unit) {
+        this(network, maxBatchSize, DEFAULT_MAX_PENDING, maxWait, unit);
+    }
+
+    /**
+     * Create a new predictor and start its worker thread.
+     * @param network network to predict with
+     * @param maxBatchSize maximum number of samples in a batch, must be larger than 0
+     * @param maxPending maximum number of samples waiting for their prediction, must be larger than 0
+     * @param maxWait maximum time a sample waits for more samples to arrive
+     * @param unit unit of {@code maxWait}
+     */
+    public BatchingPredictor(CompiledNetwork network, int maxBatchSize, int maxPending, long maxWait, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be larger than 0");
+        }
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("Number of pending samples must be larger than 0");
+        }
+
+        this.network = network;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.pending = new Semaphore(maxPending);
+        // Room for every pending sample and the close marker, hence adding never fails
+        this.queue = new LinkedBlockingQueue<>(maxPending + 1);
+
+        worker = new Thread(this::run, "batching-predictor");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue a sample for prediction. When {@code maxPending} samples are already waiting the
+     * returned future fails with a {@link RejectedExecutionException}.
+     * @param input the N inputs of the sample
+     * @return a future completed with the M outputs of the network
+     */
+    public CompletableFuture<double[]> submit(double[] input) {
+        if (input.length != network.getNbrInputs()) {
+            throw new IllegalArgumentException("Input dimensions do not agree "
+                    + String.format("%d, expected %d", input.length, network.getNbrInputs()));
+        }
+
+        Request request = new Request(input);
+
+        if (closed) {
+            request.result.completeExceptionally(new IllegalStateException("Predictor is closed"));
+            return request.result;
+        }
+
+        if (!pending.tryAcquire()) {
+            request.result.completeExceptionally(new RejectedExecutionException("Too many pending samples"));
+            return request.result;
+        }
+
+        request.result.whenComplete((output, e) -> pending.release());
+        queue.add(request);
+
+        // The predictor may have been closed, and the worker stopped, after the check above. If the
+        // request is still queued nobody will take it.
+        if (closed && queue.remove(request)) {
+            request.result.completeExceptionally(new IllegalStateException("Predictor is closed"));
+        }
+
+        return request.result;
+    }
+
+    /**
+     * Stop the worker thread. Samples already queued are still predicted, without waiting for
+     * more samples to arrive.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.offer(CLOSE);
+
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Request first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+                if (first == null || first == CLOSE) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = first.arrival + maxWaitNanos;
+
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+
+                    if (next == null || next == CLOSE) {
+                        break;
+                    }
+
+                    batch.add(next);
+                }
+
+                predict(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            queue.drainTo(batch);
+            batch.removeIf(request -> request == CLOSE);
+
+            for (Request request : batch) {
+                request.result.completeExceptionally(new IllegalStateException("Predictor is closed"));
+            }
+        }
+    }
+
+    private void predict(List<Request> batch) {
+        double[][] inputs = new double[batch.size()][];
+        double[][] outputs = new double[batch.size()][];
+
+        for (int b = 0; b < batch.size(); b++) {
+            inputs[b] = batch.get(b).input;
+            outputs[b] = new double[network.getNbrOutputs()];
+        }
+
+        try {
+            network.predict(inputs, outputs);
+        } catch (Throwable e) {
+            batch.forEach(request -> request.result.completeExceptionally(e));
+            return;
+        }
+
+        for (int b = 0; b < batch.size(); b++) {
+            batch.get(b).result.complete(outputs[b]);
+        }
+    }
+
+    private static final class Request {
+
+        private final double[] input;
+        private final long arrival = System.nanoTime();
+        private final CompletableFuture<double[]> result = new CompletableFuture<>();
+
+        Request(double[] input) {
+            this.input = input;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package se.phi.ann.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import se.phi.ann.CompiledNetwork;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A minimal HTTP server scoring samples with a compiled network.
+ *
+ * A sample is scored by a {@code POST} to {@code /predict} with the inputs as text, separated by
+ * whitespace or commas. The response holds the outputs separated by spaces. Concurrent requests are
+ * coalesced into batches by a {@link BatchingPredictor}. A request which is not scored within
+ * {@link #TIMEOUT_SECONDS}, or which arrives while too many samples are pending, is answered with
+ * status 503. A request with a body larger than the maximum body size is answered with status 413.
+ *
+ * Requests are handled by a fixed number of threads. When all of them are busy and the queue of
+ * waiting requests is full, new requests are handled on the thread accepting connections, which
+ * stops accepting more until it is done.
+ */
+public class ScoringServer implements AutoCloseable {
+
+    public static final long TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_MAX_BODY_BYTES = 64 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final BatchingPredictor predictor;
+    private final int nbrInputs;
+    private final int maxBodyBytes;
+
+    /**
+     * Create a new server with one thread per processor, but at least one per sample in a batch,
+     * {@link BatchingPredictor#DEFAULT_MAX_PENDING} pending samples and a maximum body size of
+     * {@link #DEFAULT_MAX_BODY_BYTES}. The server does not accept requests until it is started.
+     * @param address address to listen on, use port 0 for any free port
+     * @param network network to score with
+     * @param maxBatchSize maximum number of samples in a batch
+     * @param maxWait maximum time a sample waits for more samples to arrive
+     * @param unit unit of {@code maxWait}
+     * @throws IOException if the server could not bind to the address
+     */
+    public ScoringServer(InetSocketAddress address, CompiledNetwork network, int maxBatchSize, long maxWait, TimeUnit unit)
+            throws IOException {
+        this(address, network, maxBatchSize, maxWait, unit,
+                Math.max(maxBatchSize, Runtime.getRuntime().availableProcessors()),
+                BatchingPredictor.DEFAULT_MAX_PENDING, DEFAULT_MAX_BODY_BYTES);
+    }
+
+    /**
+     * Create a new server. The server does not accept requests until it is started.
+     * @param address address to listen on, use port 0 for any free port
+     * @param network network to score with
+     * @param maxBatchSize maximum number of samples in a batch
+     * @param maxWait maximum time a sample waits for more samples to arrive
+     * @param unit unit of {@code maxWait}
+     * @param nbrThreads number of threads handling requests, each waits for the batch of its sample
+     * @param maxPending maximum number of samples waiting for their prediction, also the maximum
+     *                   number of requests waiting for a thread
+     * @param maxBodyBytes maximum size of a request body
+     * @throws IOException if the server could not bind to the address
+     */
+    public ScoringServer(InetSocketAddress address, CompiledNetwork network, int maxBatchSize, long maxWait, TimeUnit unit,
+            int nbrThreads, int maxPending, int maxBodyBytes) throws IOException {
+        if (nbrThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be larger than 0");
+        }
+        if (maxBodyBytes < 1) {
+            throw new IllegalArgumentException("Maximum body size must be larger than 0");
+        }
+
+        this.nbrInputs = network.getNbrInputs();
+        this.maxBodyBytes = maxBodyBytes;
+        this.predictor = new BatchingPredictor(network, maxBatchSize, maxPending, maxWait, unit);
+        this.executor = new ThreadPoolExecutor(nbrThreads, nbrThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxPending), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.server = HttpServer.create(address, 0);
+
+        server.setExecutor(executor);
+        server.createContext("/predict", this::handle);
+    }
+
+    /**
+     * Start accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Get the port the server listens on.
+     * @return a port number
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+        predictor.close();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Method not allowed");
+                return;
+            }
+
+            String body = readBody(exchange.getRequestBody(), maxBodyBytes);
+
+            if (body == null) {
+                respond(exchange, 413, String.format("Body larger than %d bytes", maxBodyBytes));
+                return;
+            }
+
+            double[] input;
+            try {
+                input = parse(body);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage());
+                return;
+            }
+
+            double[] output = predictor.submit(input).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            StringBuilder builder = new StringBuilder();
+            for (int c = 0; c < output.length; c++) {
+                builder.append(c > 0 ? " " : "").append(output[c]);
+            }
+
+            respond(exchange, 200, builder.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Interrupted");
+        } catch (TimeoutException e) {
+            respond(exchange, 503, "Timed out");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                respond(exchange, 503, "Too many pending requests");
+            } else {
+                respond(exchange, 500, String.valueOf(e.getCause().getMessage()));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private double[] parse(String body) {
+        String trimmed = body.trim();
+        String[] tokens = trimmed.isEmpty() ? new String[0] : trimmed.split("[\\s,]+");
+
+        if (tokens.length != nbrInputs) {
+            throw new IllegalArgumentException(String.format("Expected %d inputs, got %d", nbrInputs, tokens.length));
+        }
+
+        double[] input = new double[tokens.length];
+
+        for (int i = 0; i < tokens.length; i++) {
+            input[i] = Double.parseDouble(tokens[i]);
+        }
+
+        return input;
+    }
+
+    /**
+     * Read a request body.
+     * @param inputStream the body
+     * @param maxBytes maximum size of the body
+     * @return the body, or null if it is larger than {@code maxBytes}
+     * @throws IOException if the body could not be read
+     */
+    private static String readBody(InputStream inputStream, int maxBytes) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+
+        while ((n = inputStream.read(buffer)) > 0) {
+            if (body.size() + n > maxBytes) {
+                return null;
+            }
+
+            body.write(buffer, 0, n);
+        }
+
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
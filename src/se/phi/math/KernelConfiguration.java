@@ -0,0 +1,91 @@
+package se.phi.math;
+
+/**
+ * Tuning parameters of the {@link Matrix} kernels. The best values depend on the cache sizes and
+ * number of cores of the host, see {@link Matrix#setKernelConfiguration(KernelConfiguration)}.
+ */
+public final class KernelConfiguration {
+
+    /**
+     * No blocking and no parallelism.
+     */
+    public static final KernelConfiguration DEFAULT =
+            new KernelConfiguration(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final int blockSize;
+    private final long parallelThreshold;
+    private final long elementWiseThreshold;
+
+    /**
+     * Create a configuration for matrix products, element-wise operations are not parallelized.
+     * @param blockSize number of columns of a matrix product calculated together, for each of a matching
+     *                  number of terms of the inner dimension, {@link Integer#MAX_VALUE} disables blocking
+     * @param parallelThreshold number of multiply-adds of a matrix product from which rows are calculated
+     *                          in parallel, {@link Long#MAX_VALUE} disables parallelism
+     */
+    public KernelConfiguration(int blockSize, long parallelThreshold) {
+        this(blockSize, parallelThreshold, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a configuration.
+     * @param blockSize number of columns of a matrix product calculated together, for each of a matching
+     *                  number of terms of the inner dimension, {@link Integer#MAX_VALUE} disables blocking
+     * @param parallelThreshold number of multiply-adds of a matrix product from which rows are calculated
+     *                          in parallel, {@link Long#MAX_VALUE} disables parallelism
+     * @param elementWiseThreshold number of elements of an element-wise operation, such as addition or
+     *                             scaling, from which rows are calculated in parallel, {@link Long#MAX_VALUE}
+     *                             disables parallelism
+     */
+    public KernelConfiguration(int blockSize, long parallelThreshold, long elementWiseThreshold) {
+        if (blockSize < 1 || parallelThreshold < 1 || elementWiseThreshold < 1) {
+            throw new IllegalArgumentException("Block size and parallel thresholds must be positive");
+        }
+
+        this.blockSize = blockSize;
+        this.parallelThreshold = parallelThreshold;
+        this.elementWiseThreshold = elementWiseThreshold;
+    }
+
+    public int getBlockSize() { return blockSize; }
+    public long getParallelThreshold() { return parallelThreshold; }
+    public long getElementWiseThreshold() { return elementWiseThreshold; }
+
+    /**
+     * Parse a configuration formatted by {@link #toString()}. A configuration without an element-wise
+     * threshold does not parallelize element-wise operations.
+     * @param s a string
+     * @return a configuration
+     */
+    public static KernelConfiguration parse(String s) {
+        String[] tokens = s.trim().split("\\s+");
+
+        if (tokens.length != 2 && tokens.length != 3) {
+            throw new IllegalArgumentException("Illegal kernel configuration " + s);
+        }
+
+        return new KernelConfiguration(Integer.parseInt(tokens[0]), Long.parseLong(tokens[1]),
+                tokens.length == 3 ? Long.parseLong(tokens[2]) : Long.MAX_VALUE);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof KernelConfiguration)) {
+            return false;
+        }
+
+        KernelConfiguration o = (KernelConfiguration)obj;
+        return blockSize == o.blockSize && parallelThreshold == o.parallelThreshold
+                && elementWiseThreshold == o.elementWiseThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * blockSize + Long.hashCode(parallelThreshold)) + Long.hashCode(elementWiseThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return blockSize + " " + parallelThreshold + " " + elementWiseThreshold;
+    }
+}
@@ -3,13 +3,31 @@ package se.phi.math;
 import java.util.Objects;
 import java.util.function.BiFunction;
 import java.util.function.Function;
-
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * An immutable matrix.
+ *
+ * A matrix may be a view of the storage of another matrix, see {@link #transpose()}, {@link #row(int)},
+ * {@link #column(int)} and {@link #subMatrix(int, int, int, int)}. Views are created in constant time
+ * and keep the storage of the viewed matrix alive.
+ */
 public class Matrix {
 
+    private static volatile KernelConfiguration kernelConfiguration = KernelConfiguration.DEFAULT;
+
     public final int rows;
     public final int cols;
 
-    private double[][] m;
+    /**
+     * Storage, element (r, c) is found at m[rowOffset + r][colOffset + c], or at
+     * m[rowOffset + c][colOffset + r] if the matrix is a transposed view.
+     */
+    private final double[][] m;
+    private final int rowOffset;
+    private final int colOffset;
+    private final boolean transposed;
 
     private Matrix(int rows, int cols) {
         if (rows < 1 || cols < 1) {
@@ -18,6 +36,9 @@ public class Matrix {
 
         this.rows = rows;
         this.cols = cols;
+        this.rowOffset = 0;
+        this.colOffset = 0;
+        this.transposed = false;
 
         m = new double[rows][];
         for (int r = 0; r < rows; r++) {
@@ -25,9 +46,25 @@ public class Matrix {
         }
     }
 
+    private Matrix(int rows, int cols, double[][] m, int rowOffset, int colOffset, boolean transposed) {
+        if (rows < 1 || cols < 1) {
+            throw new IllegalArgumentException("Illegal matrix dimensions");
+        }
+
+        this.rows = rows;
+        this.cols = cols;
+        this.m = m;
+        this.rowOffset = rowOffset;
+        this.colOffset = colOffset;
+        this.transposed = transposed;
+    }
+
     public Matrix(double[][] m) {
         this.rows = m.length;
         this.cols = m[0].length;
+        this.rowOffset = 0;
+        this.colOffset = 0;
+        this.transposed = false;
 
         this.m = new double[rows][];
 
@@ -44,6 +81,9 @@ public class Matrix {
 
         this.rows = rows;
         this.cols = cols;
+        this.rowOffset = 0;
+        this.colOffset = 0;
+        this.transposed = false;
 
         m = new double[rows][];
         for (int r = 0; r < rows; r++) {
@@ -55,6 +95,40 @@ public class Matrix {
         }
     }
 
+    /**
+     * Create a matrix backed by the given array without copying it.
+     */
+    static Matrix wrap(double[][] m) {
+        return new Matrix(m.length, m[0].length, m, 0, 0, false);
+    }
+
+    /**
+     * Set the tuning parameters used by all matrix kernels.
+     * @param configuration a configuration
+     */
+    public static void setKernelConfiguration(KernelConfiguration configuration) {
+        kernelConfiguration = Objects.requireNonNull(configuration);
+    }
+
+    public static KernelConfiguration getKernelConfiguration() {
+        return kernelConfiguration;
+    }
+
+    /**
+     * Run a loop body for every row, in parallel if the amount of work reaches the threshold. Products
+     * count multiply-adds against {@link KernelConfiguration#getParallelThreshold()}, element-wise
+     * operations count elements against {@link KernelConfiguration#getElementWiseThreshold()}.
+     */
+    private static void forEachRow(int rows, long work, long parallelThreshold, IntConsumer body) {
+        if (rows > 1 && work >= parallelThreshold) {
+            IntStream.range(0, rows).parallel().forEach(body);
+        } else {
+            for (int r = 0; r < rows; r++) {
+                body.accept(r);
+            }
+        }
+    }
+
     public static Matrix Identity(int dim) {
         return new Matrix(dim, dim, (r, c) -> Objects.equals(r, c) ? 1.0 : 0.0);
     }
@@ -66,30 +140,66 @@ public class Matrix {
     public static Matrix Ones(int rows, int cols) { return new Matrix(rows, cols, (r, c) -> 1.0); }
 
     public double get(int row, int col) {
-        return m[row][col];
+        if (row < 0 || row >= rows || col < 0 || col >= cols) {
+            throw new IndexOutOfBoundsException(String.format("(%d, %d) exceeds matrix dimensions", row, col));
+        }
+
+        return at(row, col);
+    }
+
+    private double at(int row, int col) {
+        return transposed ? m[rowOffset + col][colOffset + row] : m[rowOffset + row][colOffset + col];
+    }
+
+    /**
+     * Get the storage of a row of a matrix which is not a transposed view, the elements of the row
+     * start at index {@code colOffset}.
+     */
+    private double[] storageRow(int row) {
+        return m[rowOffset + row];
     }
 
     public int getRows() { return rows; }
     public int getCols() { return cols; }
 
+    /**
+     * Get a lazily evaluated expression of this matrix, see {@link MatrixExpression}.
+     * @return an expression
+     */
+    public MatrixExpression lazy() {
+        return new MatrixExpression.Leaf(this);
+    }
+
     public Matrix scale(double s) {
 
         Matrix v = new Matrix(rows, cols);
 
-        for (int r = 0; r < rows; r++) {
+        forEachRow(rows, (long)rows * cols, kernelConfiguration.getElementWiseThreshold(), r -> {
             for (int c = 0; c < cols; c++) {
-                v.m[r][c] = s * this.m[r][c];
+                v.m[r][c] = s * at(r, c);
             }
-        }
+        });
 
         return v;
     }
 
     public Matrix apply(Function<Double, Double> function) {
-        return new Matrix(this.rows, this.cols, (r, c) -> function.apply(this.m[r][c]));
+        return new Matrix(this.rows, this.cols, (r, c) -> function.apply(at(r, c)));
     }
 
     public Matrix add(Matrix o) {
+        return add(o, kernelConfiguration);
+    }
+
+    /**
+     * Add a matrix with a given kernel configuration instead of the one set with
+     * {@link #setKernelConfiguration(KernelConfiguration)}, e.g. to benchmark a configuration without
+     * affecting other threads.
+     * @param o a matrix with the dimensions of this matrix
+     * @param configuration tuning parameters of the kernel
+     * @return the sum
+     */
+    public Matrix add(Matrix o, KernelConfiguration configuration) {
         if (rows != o.rows || cols != o.cols) {
             throw new IllegalArgumentException("Matrix dimensions do not agree "
                     + String.format("%dx%d + %dx%d", rows, cols, o.rows, o.cols));
@@ -97,11 +207,11 @@ public class Matrix {
 
         Matrix v = new Matrix(rows, cols);
 
-        for (int r = 0; r < rows; r++) {
+        forEachRow(rows, (long)rows * cols, configuration.getElementWiseThreshold(), r -> {
             for (int c = 0; c < cols; c++) {
-                v.m[r][c] = this.m[r][c] + o.m[r][c];
+                v.m[r][c] = at(r, c) + o.at(r, c);
             }
-        }
+        });
 
         return v;
     }
@@ -114,11 +224,11 @@ public class Matrix {
 
         Matrix v = new Matrix(rows, cols);
 
-        for (int r = 0; r < rows; r++) {
+        forEachRow(rows, (long)rows * cols, kernelConfiguration.getElementWiseThreshold(), r -> {
             for (int c = 0; c < cols; c++) {
-                v.m[r][c] = this.m[r][c] - o.m[r][c];
+                v.m[r][c] = at(r, c) - o.at(r, c);
             }
-        }
+        });
 
         return v;
     }
@@ -134,15 +244,178 @@ public class Matrix {
             data[r] = new double[o.cols];
         }
 
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < o.cols; c++) {
+        long work = (long)rows * cols * o.cols;
+        KernelConfiguration configuration = kernelConfiguration;
+
+        if (!transposed && !o.transposed) {
+            // Stream the rows of both operands, a block of columns of the result at a time
+            int blockSize = configuration.getBlockSize();
+
+            forEachRow(rows, work, configuration.getParallelThreshold(), r -> {
+                double[] a = storageRow(r);
+                double[] v = data[r];
+
+                for (int c0 = 0; c0 < o.cols; c0 += blockSize) {
+                    int c1 = (int)Math.min((long)c0 + blockSize, o.cols);
+
+                    for (int i = 0; i < cols; i++) {
+                        double x = a[colOffset + i];
+                        double[] b = o.storageRow(i);
+
+                        for (int c = c0; c < c1; c++) {
+                            v[c] += x * b[o.colOffset + c];
+                        }
+                    }
+                }
+            });
+        } else if (!transposed) {
+            // Element (r, c) is the dot product of row r of this matrix and row c of the storage of o
+            forEachRow(rows, work, configuration.getParallelThreshold(), r -> {
+                double[] a = storageRow(r);
+
+                for (int c = 0; c < o.cols; c++) {
+                    double[] b = o.m[o.rowOffset + c];
+                    double sum = 0.0;
+
+                    for (int i = 0; i < cols; i++) {
+                        sum += a[colOffset + i] * b[o.colOffset + i];
+                    }
+
+                    data[r][c] = sum;
+                }
+            });
+        } else if (!o.transposed) {
+            // Row i of the storage of this matrix is column i of this matrix
+            for (int i = 0; i < cols; i++) {
+                double[] a = m[rowOffset + i];
+                double[] b = o.storageRow(i);
+
+                for (int r = 0; r < rows; r++) {
+                    double x = a[colOffset + r];
+
+                    for (int c = 0; c < o.cols; c++) {
+                        data[r][c] += x * b[o.colOffset + c];
+                    }
+                }
+            }
+        } else {
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < o.cols; c++) {
+                    for (int i = 0; i < cols; i++) {
+                        data[r][c] += at(r, i) * o.at(i, c);
+                    }
+                }
+            }
+        }
+
+        return wrap(data);
+    }
+
+    /**
+     * Calculate {@code function(this * weights + bias)} in a single pass. Each row of this matrix is
+     * treated as one input vector and the bias vector is added to every row of the product, hence a
+     * batch of inputs can be evaluated with one call. No intermediate matrices are created.
+     *
+     * @param weights an N-by-M matrix where N is the number of columns of this matrix
+     * @param bias a 1-by-M matrix or {@code null} if no bias should be added
+     * @param function function applied to each element of the result
+     * @return a matrix with the same number of rows as this matrix and M columns
+     */
+    public Matrix multiplyAddApply(Matrix weights, Matrix bias, Function<Double, Double> function) {
+        return multiplyAddApply(weights, bias, function, kernelConfiguration);
+    }
+
+    /**
+     * Calculate {@code function(this * weights + bias)} with a given kernel configuration instead of the
+     * one set with {@link #setKernelConfiguration(KernelConfiguration)}, e.g. to benchmark a configuration
+     * without affecting other threads. See {@link #multiplyAddApply(Matrix, Matrix, Function)}.
+     *
+     * @param weights an N-by-M matrix where N is the number of columns of this matrix
+     * @param bias a 1-by-M matrix or {@code null} if no bias should be added
+     * @param function function applied to each element of the result
+     * @param configuration tuning parameters of the kernel
+     * @return a matrix with the same number of rows as this matrix and M columns
+     */
+    public Matrix multiplyAddApply(Matrix weights, Matrix bias, Function<Double, Double> function,
+                                   KernelConfiguration configuration) {
+        if (cols != weights.rows) {
+            throw new IllegalArgumentException("Matrix dimensions do not agree "
+                    + String.format("%dx%d * %dx%d", rows, cols, weights.rows, weights.cols));
+        }
+
+        if (bias != null && (bias.rows != 1 || bias.cols != weights.cols)) {
+            throw new IllegalArgumentException("Matrix dimensions do not agree "
+                    + String.format("%dx%d + %dx%d", rows, weights.cols, bias.rows, bias.cols));
+        }
+
+        Matrix w = weights.transposed ? weights.copy() : weights;
+        Matrix v = new Matrix(rows, w.cols);
+        int blockSize = configuration.getBlockSize();
+
+        forEachRow(rows, (long)rows * cols * w.cols, configuration.getParallelThreshold(), r -> {
+            double[] out = v.m[r];
+
+            // A block of columns of the result at a time, see multiply(Matrix)
+            for (int c0 = 0; c0 < out.length; c0 += blockSize) {
+                int c1 = (int)Math.min((long)c0 + blockSize, out.length);
+
                 for (int i = 0; i < cols; i++) {
-                    data[r][c] += m[r][i] * o.m[i][c];
+                    double x = at(r, i);
+                    double[] wi = w.storageRow(i);
+
+                    for (int c = c0; c < c1; c++) {
+                        out[c] += x * wi[w.colOffset + c];
+                    }
                 }
             }
+
+            for (int c = 0; c < out.length; c++) {
+                out[c] = function.apply(bias != null ? out[c] + bias.at(0, c) : out[c]);
+            }
+        });
+
+        return v;
+    }
+
+    /**
+     * Calculate {@code function(this * weights + bias)} in a single pass, visiting only the non-zero
+     * weights. See {@link #multiplyAddApply(Matrix, Matrix, Function)}.
+     *
+     * @param weights an N-by-M sparse matrix where N is the number of columns of this matrix
+     * @param bias a 1-by-M matrix or {@code null} if no bias should be added
+     * @param function function applied to each element of the result
+     * @return a matrix with the same number of rows as this matrix and M columns
+     */
+    public Matrix multiplyAddApply(SparseMatrix weights, Matrix bias, Function<Double, Double> function) {
+        if (cols != weights.rows) {
+            throw new IllegalArgumentException("Matrix dimensions do not agree "
+                    + String.format("%dx%d * %dx%d", rows, cols, weights.rows, weights.cols));
+        }
+
+        if (bias != null && (bias.rows != 1 || bias.cols != weights.cols)) {
+            throw new IllegalArgumentException("Matrix dimensions do not agree "
+                    + String.format("%dx%d + %dx%d", rows, weights.cols, bias.rows, bias.cols));
         }
 
-        return new Matrix(data);
+        Matrix v = new Matrix(rows, weights.cols);
+
+        for (int r = 0; r < rows; r++) {
+            double[] out = v.m[r];
+
+            for (int i = 0; i < cols; i++) {
+                double x = at(r, i);
+
+                for (int j = weights.rowPointers[i]; j < weights.rowPointers[i + 1]; j++) {
+                    out[weights.columnIndices[j]] += x * weights.values[j];
+                }
+            }
+
+            for (int c = 0; c < out.length; c++) {
+                out[c] = function.apply(bias != null ? out[c] + bias.at(0, c) : out[c]);
+            }
+        }
+
+        return v;
     }
 
     public Matrix addElementWise(Matrix o) {
@@ -163,35 +436,68 @@ public class Matrix {
                     + String.format("%dx%d - %dx%d", rows, cols, o.rows, o.cols));
         }
 
-        return new Matrix(rows, cols, (r, c) -> function.apply(this.m[r][c], o.m[r][c]));
+        return new Matrix(rows, cols, (r, c) -> function.apply(at(r, c), o.at(r, c)));
     }
 
+    /**
+     * Get the transpose of this matrix as a view, no elements are copied.
+     * @return a cols-by-rows matrix
+     */
     public Matrix transpose() {
-        return new Matrix(cols, rows, (r, c) -> this.m[c][r]);
+        return new Matrix(cols, rows, m, rowOffset, colOffset, !transposed);
     }
 
-     Matrix row(int r) {
+    /**
+     * Get a row of this matrix as a view, no elements are copied.
+     * @param r index of the row
+     * @return a 1-by-cols matrix
+     */
+    public Matrix row(int r) {
         if (r < 0 || r > rows - 1) {
             throw new IllegalArgumentException("Row exceeds matrix dimensions");
         }
 
-        Matrix v = new Matrix(1, cols);
-        System.arraycopy(this.m[r], 0, v.m[0], 0, cols);
-        return v;
+        return subMatrix(r, 0, 1, cols);
     }
 
-    private Matrix column(int c) {
+    /**
+     * Get a column of this matrix as a view, no elements are copied.
+     * @param c index of the column
+     * @return a rows-by-1 matrix
+     */
+    public Matrix column(int c) {
         if (c < 0 || c > cols - 1) {
             throw new IllegalArgumentException("Columns exceeds matrix dimensions");
         }
 
-        Matrix v = new Matrix(rows, 1);
+        return subMatrix(0, c, rows, 1);
+    }
 
-        for (int r = 0; r < rows; r++) {
-            v.m[r][0] = this.m[r][c];
+    /**
+     * Get a block of this matrix as a view, no elements are copied.
+     * @param row index of the first row of the block
+     * @param col index of the first column of the block
+     * @param nbrRows number of rows of the block
+     * @param nbrCols number of columns of the block
+     * @return an nbrRows-by-nbrCols matrix
+     */
+    public Matrix subMatrix(int row, int col, int nbrRows, int nbrCols) {
+        if (row < 0 || col < 0 || nbrRows < 1 || nbrCols < 1 || row + nbrRows > rows || col + nbrCols > cols) {
+            throw new IllegalArgumentException("Block exceeds matrix dimensions "
+                    + String.format("%dx%d at (%d, %d) in %dx%d", nbrRows, nbrCols, row, col, rows, cols));
         }
 
-        return v;
+        return transposed ?
+                new Matrix(nbrRows, nbrCols, m, rowOffset + col, colOffset + row, true) :
+                new Matrix(nbrRows, nbrCols, m, rowOffset + row, colOffset + col, false);
+    }
+
+    /**
+     * Copy this matrix into new storage, useful to release the storage of a large matrix a view refers to.
+     * @return a matrix which is not a view
+     */
+    public Matrix copy() {
+        return new Matrix(rows, cols, (r, c) -> at(r, c));
     }
 
     private static double dotProd(Matrix a, Matrix b) {
@@ -202,7 +508,7 @@ public class Matrix {
         double prod = 0.0;
 
         for (int x = 0; x < a.cols; x++) {
-            prod += a.m[0][x] * b.m[x][0];
+            prod += a.at(0, x) * b.at(x, 0);
         }
 
         return prod;
@@ -214,8 +520,8 @@ public class Matrix {
         }
 
         return m.rows > m.cols ?
-                new Matrix(m.rows, m.rows, (r, c) -> r == c ? m.m[r][0] : 0.0) :
-                new Matrix(m.cols, m.cols, (r, c) -> r == c ? m.m[0][c] : 0.0);
+                new Matrix(m.rows, m.rows, (r, c) -> r == c ? m.at(r, 0) : 0.0) :
+                new Matrix(m.cols, m.cols, (r, c) -> r == c ? m.at(0, c) : 0.0);
     }
 
     @Override
@@ -232,7 +538,7 @@ public class Matrix {
 
         for (int r = 0; r < rows; r++) {
             for (int c = 0; c < cols; c++) {
-                if (Double.compare(this.m[r][c], o.m[r][c]) != 0) {
+                if (Double.compare(at(r, c), o.at(r, c)) != 0) {
                     return false;
                 }
             }
@@ -241,6 +547,20 @@ public class Matrix {
         return true;
     }
 
+    @Override
+    public int hashCode() {
+        int hash = 31 * rows + cols;
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                long bits = Double.doubleToLongBits(at(r, c));
+                hash = 31 * hash + (int)(bits ^ (bits >>> 32));
+            }
+        }
+
+        return hash;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -249,7 +569,7 @@ public class Matrix {
             builder.append(r == 0 ? "[" : " ");
 
             for (int c = 0; c < cols; c++) {
-                builder.append(c > 0 ? String.format(", %-2.4f", m[r][c]) : String.format("%-2.4f", m[r][c]));
+                builder.append(c > 0 ? String.format(", %-2.4f", at(r, c)) : String.format("%-2.4f", at(r, c)));
             }
 
             builder.append(r == rows - 1 ? "]" : "\n");
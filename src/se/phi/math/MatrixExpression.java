@@ -0,0 +1,229 @@
+package se.phi.math;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A lazily evaluated matrix expression. Operations on an expression only record the operation,
+ * nothing is calculated until {@link #evaluate()} is called. Element-wise operations, scaling and
+ * transposing are then fused into a single loop writing the result matrix without any intermediate
+ * matrices.
+ *
+ * A product is calculated once, the first time one of its elements is needed, unless it is an outer
+ * product (the inner dimension is 1) in which case each element is calculated when needed. Expressions
+ * are not thread safe.
+ */
+public abstract class MatrixExpression {
+
+    final int rows;
+    final int cols;
+
+    MatrixExpression(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Calculate a single element of the expression.
+     */
+    abstract double get(int row, int col);
+
+    public int getRows() { return rows; }
+    public int getCols() { return cols; }
+
+    public MatrixExpression add(MatrixExpression o) {
+        checkDimensions(o, "+");
+        return new ElementWise(this, o, (x, y) -> x + y);
+    }
+
+    public MatrixExpression add(Matrix o) {
+        return add(o.lazy());
+    }
+
+    public MatrixExpression subtract(MatrixExpression o) {
+        checkDimensions(o, "-");
+        return new ElementWise(this, o, (x, y) -> x - y);
+    }
+
+    public MatrixExpression subtract(Matrix o) {
+        return subtract(o.lazy());
+    }
+
+    public MatrixExpression multiplyElementWise(MatrixExpression o) {
+        checkDimensions(o, ".*");
+        return new ElementWise(this, o, (x, y) -> x * y);
+    }
+
+    public MatrixExpression multiplyElementWise(Matrix o) {
+        return multiplyElementWise(o.lazy());
+    }
+
+    public MatrixExpression scale(double s) {
+        return new Scale(this, s);
+    }
+
+    public MatrixExpression apply(Function<Double, Double> function) {
+        return new Apply(this, function);
+    }
+
+    public MatrixExpression transpose() {
+        return new Transpose(this);
+    }
+
+    public MatrixExpression multiply(MatrixExpression o) {
+        if (cols != o.rows) {
+            throw new IllegalArgumentException("Matrix dimensions do not agree "
+                    + String.format("%dx%d * %dx%d", rows, cols, o.rows, o.cols));
+        }
+
+        return new Multiply(this, o);
+    }
+
+    public MatrixExpression multiply(Matrix o) {
+        return multiply(o.lazy());
+    }
+
+    /**
+     * Evaluate the expression.
+     * @return a new matrix holding the result
+     */
+    public Matrix evaluate() {
+        double[][] data = new double[rows][];
+
+        for (int r = 0; r < rows; r++) {
+            data[r] = new double[cols];
+
+            for (int c = 0; c < cols; c++) {
+                data[r][c] = get(r, c);
+            }
+        }
+
+        return Matrix.wrap(data);
+    }
+
+    private void checkDimensions(MatrixExpression o, String operator) {
+        if (rows != o.rows || cols != o.cols) {
+            throw new IllegalArgumentException("Matrix dimensions do not agree "
+                    + String.format("%dx%d %s %dx%d", rows, cols, operator, o.rows, o.cols));
+        }
+    }
+
+    static final class Leaf extends MatrixExpression {
+
+        private final Matrix matrix;
+
+        Leaf(Matrix matrix) {
+            super(matrix.rows, matrix.cols);
+            this.matrix = matrix;
+        }
+
+        @Override
+        double get(int row, int col) {
+            return matrix.get(row, col);
+        }
+
+        @Override
+        public Matrix evaluate() {
+            return matrix;
+        }
+    }
+
+    private static final class ElementWise extends MatrixExpression {
+
+        private final MatrixExpression a;
+        private final MatrixExpression b;
+        private final BiFunction<Double, Double, Double> function;
+
+        ElementWise(MatrixExpression a, MatrixExpression b, BiFunction<Double, Double, Double> function) {
+            super(a.rows, a.cols);
+            this.a = a;
+            this.b = b;
+            this.function = function;
+        }
+
+        @Override
+        double get(int row, int col) {
+            return function.apply(a.get(row, col), b.get(row, col));
+        }
+    }
+
+    private static final class Scale extends MatrixExpression {
+
+        private final MatrixExpression a;
+        private final double s;
+
+        Scale(MatrixExpression a, double s) {
+            super(a.rows, a.cols);
+            this.a = a;
+            this.s = s;
+        }
+
+        @Override
+        double get(int row, int col) {
+            return s * a.get(row, col);
+        }
+    }
+
+    private static final class Apply extends MatrixExpression {
+
+        private final MatrixExpression a;
+        private final Function<Double, Double> function;
+
+        Apply(MatrixExpression a, Function<Double, Double> function) {
+            super(a.rows, a.cols);
+            this.a = a;
+            this.function = function;
+        }
+
+        @Override
+        double get(int row, int col) {
+            return function.apply(a.get(row, col));
+        }
+    }
+
+    private static final class Transpose extends MatrixExpression {
+
+        private final MatrixExpression a;
+
+        Transpose(MatrixExpression a) {
+            super(a.cols, a.rows);
+            this.a = a;
+        }
+
+        @Override
+        double get(int row, int col) {
+            return a.get(col, row);
+        }
+
+        @Override
+        public Matrix evaluate() {
+            return a instanceof Leaf ? a.evaluate().transpose() : super.evaluate();
+        }
+    }
+
+    private static final class Multiply extends MatrixExpression {
+
+        private final MatrixExpression a;
+        private final MatrixExpression b;
+        private Matrix product;
+
+        Multiply(MatrixExpression a, MatrixExpression b) {
+            super(a.rows, b.cols);
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double get(int row, int col) {
+            if (a.cols == 1) {
+                return a.get(row, 0) * b.get(0, col);
+            }
+
+            if (product == null) {
+                product = a.evaluate().multiply(b.evaluate());
+            }
+
+            return product.get(row, col);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package se.phi.math;
+
+/**
+ * An immutable matrix in compressed sparse row format. Only the non-zero elements are stored, for
+ * each row the column indices and values of its non-zero elements are stored contiguously.
+ */
+public class SparseMatrix {
+
+    public final int rows;
+    public final int cols;
+
+    final int[] rowPointers;
+    final int[] columnIndices;
+    final double[] values;
+
+    private SparseMatrix(int rows, int cols, int[] rowPointers, int[] columnIndices, double[] values) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowPointers = rowPointers;
+        this.columnIndices = columnIndices;
+        this.values = values;
+    }
+
+    /**
+     * Create a sparse matrix holding the non-zero elements of a matrix.
+     * @param m a matrix
+     * @return a sparse matrix
+     */
+    public static SparseMatrix of(Matrix m) {
+        int nbrNonZeros = 0;
+
+        for (int r = 0; r < m.rows; r++) {
+            for (int c = 0; c < m.cols; c++) {
+                if (m.get(r, c) != 0.0) {
+                    nbrNonZeros++;
+                }
+            }
+        }
+
+        int[] rowPointers = new int[m.rows + 1];
+        int[] columnIndices = new int[nbrNonZeros];
+        double[] values = new double[nbrNonZeros];
+        int i = 0;
+
+        for (int r = 0; r < m.rows; r++) {
+            rowPointers[r] = i;
+
+            for (int c = 0; c < m.cols; c++) {
+                double value = m.get(r, c);
+
+                if (value != 0.0) {
+                    columnIndices[i] = c;
+                    values[i] = value;
+                    i++;
+                }
+            }
+        }
+
+        rowPointers[m.rows] = i;
+
+        return new SparseMatrix(m.rows, m.cols, rowPointers, columnIndices, values);
+    }
+
+    public int getRows() { return rows; }
+    public int getCols() { return cols; }
+
+    /**
+     * Get the number of stored elements.
+     * @return number of non-zero elements
+     */
+    public int getNbrNonZeros() {
+        return values.length;
+    }
+
+    public double get(int row, int col) {
+        for (int i = rowPointers[row]; i < rowPointers[row + 1]; i++) {
+            if (columnIndices[i] == col) {
+                return values[i];
+            }
+        }
+
+        return 0.0;
+    }
+
+    /**
+     * Convert to a dense matrix.
+     * @return a matrix
+     */
+    public Matrix toMatrix() {
+        double[][] m = new double[rows][];
+
+        for (int r = 0; r < rows; r++) {
+            m[r] = new double[cols];
+
+            for (int i = rowPointers[r]; i < rowPointers[r + 1]; i++) {
+                m[r][columnIndices[i]] = values[i];
+            }
+        }
+
+        return Matrix.wrap(m);
+    }
+
+    @Override
+    public String toString() {
+        return toMatrix().toString();
+    }
+}
@@ -0,0 +1,189 @@
+package se.phi.ann;
+
+import junit.framework.TestCase;
+import se.phi.ann.examples.table.TableTrainingData;
+import se.phi.ann.examples.table.TableTrainingDataItem;
+import se.phi.math.Matrix;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class CheckpointerTest extends TestCase {
+
+    private static final int NBR_ITEMS = 40;
+    private static final int NBR_BATCHES = 4;
+
+    private Path directory;
+    private Path path;
+    private TableTrainingData trainingData;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("checkpoint");
+        path = directory.resolve("network.checkpoint");
+        trainingData = new TableTrainingData(new Matrix(NBR_ITEMS, 2, (r, c) -> c == 0 ? (double)r / NBR_ITEMS : r % 2),
+                new Matrix(NBR_ITEMS, 1, (r, c) -> (double)(r % 2)));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static Network network() {
+        return new Network(2, Arrays.asList(6), 1, true, Network.SIGMOID, WeightInitialization.XAVIER, 1);
+    }
+
+    public void testPeriodicCheckpoints() throws IOException {
+        AtomicInteger nbrCheckpoints = new AtomicInteger();
+        Checkpointer checkpointer = new Checkpointer(path, 1, 0, TimeUnit.SECONDS) {
+            @Override
+            void checkpoint(Network network, Progress progress) {
+                nbrCheckpoints.incrementAndGet();
+                super.checkpoint(network, progress);
+            }
+        };
+
+        try (Checkpointer closing = checkpointer) {
+            network().train(trainingData, 0.5, 3, NBR_BATCHES, closing);
+        }
+
+        assertTrue(nbrCheckpoints.get() > 1);
+        assertEquals(Arrays.asList(path), Files.list(directory).collect(Collectors.toList()));
+        assertTrue(new String(Files.readAllBytes(path), "UTF-8").startsWith("checkpoint 3 0 "));
+    }
+
+    public void testCompletedTrainingIsNotRepeated() throws IOException {
+        Network trained = network();
+        double error;
+
+        try (Checkpointer checkpointer = new Checkpointer(path, 0, 0, TimeUnit.SECONDS)) {
+            error = trained.train(trainingData, 0.5, 3, NBR_BATCHES, checkpointer);
+        }
+
+        Network resumed = network();
+        Arrays.stream(trainingData.getTrainingData()).forEach(TableTrainingDataItem::resetNbrUses);
+
+        try (Checkpointer checkpointer = new Checkpointer(path, 0, 0, TimeUnit.SECONDS)) {
+            assertEquals(error, resumed.train(trainingData, 0.5, 3, NBR_BATCHES, checkpointer));
+        }
+
+        Matrix input = new Matrix(new double[][] {{0.5, 1}});
+        assertEquals(trained.predict(input), resumed.predict(input));
+        assertTrue(Arrays.stream(trainingData.getTrainingData()).allMatch(item -> item.getNbrUses() == 0));
+    }
+
+    public void testResumeInterruptedEpoch() throws IOException {
+        AtomicInteger nbrCheckpoints = new AtomicInteger();
+        Checkpointer crashing = new Checkpointer(path, 1, 0, TimeUnit.SECONDS) {
+            @Override
+            void checkpoint(Network network, Progress progress) {
+                nbrCheckpoints.incrementAndGet();
+                super.checkpoint(network, progress);
+            }
+
+            @Override
+            void batchCompleted(Network network, Progress progress) {
+                super.batchCompleted(network, progress);
+
+                if (nbrCheckpoints.get() == 1) {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    throw new IllegalStateException("Crash");
+                }
+            }
+        };
+
+        try {
+            network().train(trainingData, 0.5, 1, NBR_BATCHES, crashing);
+            fail("Training did not crash");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try (Checkpointer checkpointer = new Checkpointer(path, 0, 0, TimeUnit.SECONDS)) {
+            network().train(trainingData, 0.5, 1, NBR_BATCHES, checkpointer);
+        }
+
+        for (TableTrainingDataItem item : trainingData.getTrainingData()) {
+            assertEquals(1, item.getNbrUses());
+        }
+    }
+
+    public void testWriteFailureIsThrownOnNextBatch() throws Exception {
+        Network network = network();
+        Checkpointer.Progress progress = new Checkpointer.Progress(0, 0, 1, 0, 0);
+        Checkpointer checkpointer = new Checkpointer(directory.resolve("missing").resolve("network.checkpoint"),
+                0, 0, TimeUnit.SECONDS);
+
+        try {
+            checkpointer.checkpoint(network, progress);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+            while (System.nanoTime() < deadline) {
+                checkpointer.batchCompleted(network, progress);
+                Thread.sleep(1);
+            }
+
+            fail("Write failure was not thrown");
+        } catch (UncheckedIOException e) {
+            // expected
+        } finally {
+            checkpointer.close();
+        }
+    }
+
+    public void testPruningMaskIsRestored() throws IOException {
+        Network pruned = network();
+        pruned.prune(0.5);
+
+        try (Checkpointer checkpointer = new Checkpointer(path, 0, 0, TimeUnit.SECONDS)) {
+            pruned.train(trainingData, 0.5, 1, NBR_BATCHES, checkpointer);
+        }
+
+        Network resumed = network();
+
+        try (Checkpointer checkpointer = new Checkpointer(path, 0, 0, TimeUnit.SECONDS)) {
+            resumed.train(trainingData, 0.5, 3, NBR_BATCHES, checkpointer);
+        }
+
+        List<Layer.State> before = pruned.getTopology();
+        List<Layer.State> after = resumed.getTopology();
+
+        assertEquals(before.size(), after.size());
+
+        for (int l = 0; l < before.size(); l++) {
+            Matrix weights = before.get(l).weights;
+            int nbrPruned = 0;
+
+            assertEquals(before.get(l).pruningMask, after.get(l).pruningMask);
+
+            for (int r = 0; r < weights.getRows(); r++) {
+                for (int c = 0; c < weights.getCols(); c++) {
+                    if (weights.get(r, c) == 0.0) {
+                        assertEquals(0.0, after.get(l).weights.get(r, c), 0.0);
+                        nbrPruned++;
+                    }
+                }
+            }
+
+            assertEquals((int)(0.5 * weights.getRows() * weights.getCols()), nbrPruned);
+        }
+    }
+}
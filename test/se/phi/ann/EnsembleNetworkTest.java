@@ -0,0 +1,68 @@
+package se.phi.ann;
+
+import junit.framework.TestCase;
+import se.phi.math.Matrix;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class EnsembleNetworkTest extends TestCase {
+
+    private final List<Network> networks = Arrays.asList(
+            new Network(3, Arrays.asList(4, 5), 3, true, Network.SIGMOID, WeightInitialization.XAVIER, 1),
+            new Network(3, Arrays.asList(7, 2), 3, true, Network.HYPTAN, WeightInitialization.XAVIER, 2),
+            new Network(3, Arrays.asList(1, 6), 3, false, x -> x / (1 + Math.abs(x)), WeightInitialization.HE, 3));
+
+    private final Matrix input = new Matrix(5, 3, (r, c) -> Math.sin(r * 3 + c));
+
+    public void testAverage() {
+        Matrix actual = new EnsembleNetwork(networks, EnsembleNetwork.Combiner.AVERAGE).predict(input);
+
+        for (int r = 0; r < input.getRows(); r++) {
+            for (int c = 0; c < 3; c++) {
+                double expected = 0;
+
+                for (Network network : networks) {
+                    expected += network.predict(input.row(r)).get(0, c) / networks.size();
+                }
+
+                assertEquals(expected, actual.get(r, c), 1e-12);
+            }
+        }
+    }
+
+    public void testVote() {
+        Matrix actual = new EnsembleNetwork(networks, EnsembleNetwork.Combiner.VOTE).predict(input);
+
+        for (int r = 0; r < input.getRows(); r++) {
+            double[] expected = new double[3];
+
+            for (Network network : networks) {
+                Matrix output = network.predict(input.row(r));
+                int vote = 0;
+
+                for (int c = 1; c < 3; c++) {
+                    if (output.get(0, c) > output.get(0, vote)) {
+                        vote = c;
+                    }
+                }
+
+                expected[vote] += 1.0 / networks.size();
+            }
+
+            for (int c = 0; c < 3; c++) {
+                assertEquals(expected[c], actual.get(r, c), 1e-12);
+            }
+        }
+    }
+
+    public void testMismatchedNetworks() {
+        try {
+            new EnsembleNetwork(Arrays.asList(networks.get(0),
+                    new Network(3, Arrays.asList(4, 5), 2, true, Network.SIGMOID)), EnsembleNetwork.Combiner.AVERAGE);
+            fail("Created an ensemble of networks with different outputs");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package se.phi.ann;
+
+import junit.framework.TestCase;
+import se.phi.ann.examples.table.TableTrainingData;
+import se.phi.math.Matrix;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class HyperparameterSearchTest extends TestCase {
+
+    private static TrainingData average(int nbrItems, double offset) {
+        Matrix inputs = new Matrix(nbrItems, 2, (r, c) -> c == 0 ? (r % 7) / 7.0 + offset : (r % 5) / 5.0);
+        Matrix references = new Matrix(nbrItems, 1, (r, c) -> (inputs.get(r, 0) + inputs.get(r, 1)) / 2);
+        return new TableTrainingData(inputs, references);
+    }
+
+    public void testSuccessiveHalving() throws InterruptedException {
+        TrainingData trainingData = average(40, 0);
+        TrainingData validationData = average(10, 0.05);
+
+        List<HyperparameterSearch.Candidate> candidates = Arrays.asList(
+                new HyperparameterSearch.Candidate(Arrays.asList(2), 0.5, 40, 4),
+                new HyperparameterSearch.Candidate(Arrays.asList(4), 0.5, 40, 4),
+                new HyperparameterSearch.Candidate(Arrays.asList(4, 4), 0.1, 40, 4),
+                new HyperparameterSearch.Candidate(Arrays.asList(8), 0.01, 40, 4));
+
+        List<HyperparameterSearch.Result> results = new HyperparameterSearch(2, 2)
+                .search(trainingData, validationData, candidates);
+
+        assertEquals(candidates.size(), results.size());
+        assertTrue(results.get(0).isCompleted());
+        assertTrue(results.get(1).isCompleted());
+        assertEquals(20, results.get(2).getEpochsTrained());
+        assertEquals(20, results.get(3).getEpochsTrained());
+        assertTrue(results.get(0).getError() <= results.get(1).getError());
+
+        for (HyperparameterSearch.Result result : results) {
+            assertFalse(Double.isNaN(result.getTrainingError()));
+            assertEquals(validationError(result.getNetwork(), validationData), result.getError(), 1e-12);
+        }
+    }
+
+    private static double validationError(Network network, TrainingData validationData) {
+        double quadError = 0;
+
+        for (TrainingDataItem item : validationData.getTrainingData()) {
+            double error = network.predict(item.getInputData()).get(0, 0) - item.getReferenceData().get(0, 0);
+            quadError += error * error;
+        }
+
+        return quadError / validationData.getTrainingData().length;
+    }
+}
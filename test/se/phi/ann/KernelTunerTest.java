@@ -0,0 +1,73 @@
+package se.phi.ann;
+
+import junit.framework.TestCase;
+import se.phi.math.KernelConfiguration;
+import se.phi.math.Matrix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+public class KernelTunerTest extends TestCase {
+
+    private Path directory;
+    private Path profile;
+    private KernelConfiguration previous;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("kernel");
+        profile = directory.resolve("kernel.profile");
+        previous = Matrix.getKernelConfiguration();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Matrix.setKernelConfiguration(previous);
+        Files.deleteIfExists(profile);
+        Files.delete(directory);
+    }
+
+    public void testProfileIsReused() throws IOException {
+        Network network = new Network(8, Arrays.asList(16), 2, true, Network.SIGMOID, WeightInitialization.XAVIER, 1);
+
+        KernelConfiguration tuned = KernelTuner.loadOrTune(profile, network, 4);
+        assertEquals(tuned, Matrix.getKernelConfiguration());
+
+        Properties properties = load();
+        assertEquals(1, properties.size());
+        String key = properties.stringPropertyNames().iterator().next();
+        assertEquals(tuned, KernelConfiguration.parse(properties.getProperty(key)));
+
+        // A configuration no benchmark selects, hence returning it shows that the profile was used
+        KernelConfiguration stored = new KernelConfiguration(3, 5, 7);
+        properties.setProperty(key, stored.toString());
+        try (OutputStream outputStream = Files.newOutputStream(profile)) {
+            properties.store(outputStream, null);
+        }
+        byte[] bytes = Files.readAllBytes(profile);
+        Matrix.setKernelConfiguration(KernelConfiguration.DEFAULT);
+
+        assertEquals(stored, KernelTuner.loadOrTune(profile, network, 4));
+        assertEquals(stored, Matrix.getKernelConfiguration());
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(profile)));
+
+        KernelTuner.loadOrTune(profile, network, 2);
+        assertEquals(2, load().size());
+        assertEquals(stored.toString(), load().getProperty(key));
+    }
+
+    private Properties load() throws IOException {
+        Properties properties = new Properties();
+
+        try (InputStream inputStream = Files.newInputStream(profile)) {
+            properties.load(inputStream);
+        }
+
+        return properties;
+    }
+}
@@ -0,0 +1,200 @@
+package se.phi.ann;
+
+import junit.framework.TestCase;
+import se.phi.math.Matrix;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ModelRegistryTest extends TestCase {
+
+    private static final int NBR_THREADS = 8;
+
+    private final Map<String, byte[]> models = new HashMap<>();
+    private final Map<String, AtomicInteger> opens = new HashMap<>();
+
+    @Override
+    protected void setUp() {
+        for (String modelId : Arrays.asList("a", "b", "c")) {
+            for (int version = 1; version <= 2; version++) {
+                Network net = new Network(2, Arrays.asList(3), 1, true, Network.SIGMOID,
+                        WeightInitialization.XAVIER, modelId.hashCode() * 10 + version);
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                net.save(outputStream);
+
+                models.put(modelId + version, outputStream.toByteArray());
+                opens.put(modelId + version, new AtomicInteger());
+            }
+        }
+    }
+
+    private ByteArrayInputStream open(String modelId, int version) {
+        opens.get(modelId + version).incrementAndGet();
+        return new ByteArrayInputStream(models.get(modelId + version));
+    }
+
+    public void testSingleFlightLoading() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ModelRegistry registry = new ModelRegistry((modelId, version) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return open(modelId, version);
+        }, Long.MAX_VALUE);
+
+        List<CompiledNetwork> networks = getConcurrently(registry, release);
+
+        assertEquals(1, opens.get("a1").get());
+        for (CompiledNetwork network : networks) {
+            assertSame(networks.get(0), network);
+        }
+    }
+
+    public void testFailedLoadingReleasesWaiters() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ModelRegistry registry = new ModelRegistry((modelId, version) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            throw new StackOverflowError("Failed to load " + modelId);
+        }, Long.MAX_VALUE);
+
+        try {
+            getConcurrently(registry, release);
+            fail("Loading did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+    }
+
+    private static List<CompiledNetwork> getConcurrently(ModelRegistry registry, CountDownLatch release)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NBR_THREADS);
+
+        try {
+            List<Future<CompiledNetwork>> futures = new ArrayList<>();
+            for (int t = 0; t < NBR_THREADS; t++) {
+                futures.add(executor.submit(() -> registry.get("a", 1)));
+            }
+
+            Thread.sleep(100);
+            release.countDown();
+
+            List<CompiledNetwork> networks = new ArrayList<>();
+            for (Future<CompiledNetwork> future : futures) {
+                networks.add(future.get(10, TimeUnit.SECONDS));
+            }
+            return networks;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        ModelRegistry probe = new ModelRegistry(this::open, Long.MAX_VALUE);
+        long modelBytes = probe.get("a", 2).getWeightBytes();
+
+        ModelRegistry registry = new ModelRegistry(this::open, 2 * modelBytes);
+        registry.get("a", 1);
+        registry.get("b", 1);
+        registry.get("a", 1);
+        registry.get("c", 1);
+
+        assertEquals(2, registry.size());
+        assertEquals(2 * modelBytes, registry.getWeightBytes());
+
+        registry.get("a", 1);
+        registry.get("c", 1);
+        assertEquals(1, opens.get("a1").get());
+        assertEquals(1, opens.get("c1").get());
+
+        registry.get("b", 1);
+        assertEquals(2, opens.get("b1").get());
+
+        registry.evict("b");
+        assertEquals(1, registry.size());
+        assertEquals(modelBytes, registry.getWeightBytes());
+    }
+
+    public void testPublish() throws IOException {
+        ModelRegistry registry = new ModelRegistry(this::open, Long.MAX_VALUE);
+        Matrix input = new Matrix(new double[][] {{0.2, 0.9}});
+
+        try {
+            registry.get("a");
+            fail("Got an unpublished model");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        registry.publish("a", 1);
+        CompiledNetwork first = registry.get("a");
+        Matrix before = registry.predict("a", input);
+
+        registry.publish("a", 2);
+        assertSame(registry.get("a", 2), registry.get("a"));
+        assertFalse(before.equals(registry.predict("a", input)));
+        assertEquals(before, first.predict(input));
+        assertEquals(1, opens.get("a2").get());
+    }
+
+    public void testPublishedVersionsAreNotEvicted() throws IOException {
+        ModelRegistry probe = new ModelRegistry(this::open, Long.MAX_VALUE);
+        long modelBytes = probe.get("a", 2).getWeightBytes();
+
+        ModelRegistry registry = new ModelRegistry(this::open, 2 * modelBytes);
+        registry.publish("a", 1);
+        CompiledNetwork published = registry.get("a");
+        registry.get("b", 1);
+        registry.get("c", 1);
+        registry.get("b", 2);
+
+        assertEquals(2, registry.size());
+        assertSame(published, registry.get("a"));
+        assertSame(published, registry.get("a", 1));
+        assertEquals(1, opens.get("a1").get());
+
+        registry.evict("a");
+        assertSame(published, registry.get("a", 1));
+        assertEquals(1, opens.get("a1").get());
+
+        registry.publish("a", 2);
+        registry.get("b", 1);
+        registry.get("c", 1);
+        registry.get("a", 1);
+        assertEquals(2, opens.get("a1").get());
+    }
+
+    public void testOlderVersionIsNotPublished() throws IOException {
+        ModelRegistry registry = new ModelRegistry(this::open, Long.MAX_VALUE);
+        registry.publish("a", 2);
+
+        try {
+            registry.publish("a", 1);
+            fail("Published an older version");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertSame(registry.get("a", 2), registry.get("a"));
+        registry.publish("a", 2);
+        assertSame(registry.get("a", 2), registry.get("a"));
+    }
+}
@@ -3,13 +3,17 @@ package se.phi.ann;
 import junit.framework.TestCase;
 import se.phi.ann.examples.and.AndTrainingData;
 import se.phi.ann.examples.sine.SinTrainingData;
+import se.phi.ann.examples.table.TableTrainingData;
 import se.phi.ann.examples.xor.XorTrainingData;
 import se.phi.math.Matrix;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.function.Function;
 
 public class NetworkTest extends TestCase {
@@ -73,4 +77,224 @@ public class NetworkTest extends TestCase {
         */
 
     }
-}
\ No newline at end of file
+
+    public void testCompiledNetwork() {
+        TrainingData data = XorTrainingData.getInstance();
+
+        Network net = new Network(data.getNbrInputs(), Arrays.asList(3), data.getNbrOutputs(), true, Network.SIGMOID);
+        net.train(data, 0.7, 1000, 1);
+
+        Matrix input = new Matrix(new double[][] {{0, 0}, {0, 1}, {1, 0}, {1, 1}});
+        Matrix expected = net.predict(input);
+        Matrix actual = net.compile().predict(input);
+
+        for (int r = 0; r < input.getRows(); r++) {
+            assertEquals(expected.get(r, 0), actual.get(r, 0), 1e-12);
+        }
+    }
+
+    public void testOffHeapNetwork() throws IOException {
+        Function<Double, Double> relu = x -> Math.max(0, x);
+        Network net = new Network(4, Arrays.asList(LayerDefinition.dense(6), LayerDefinition.dense(3)), true,
+                Network.HYPTAN, WeightInitialization.XAVIER, 11);
+        Network custom = new Network(4, Arrays.asList(5), 2, false, relu, WeightInitialization.HE, 12);
+
+        Matrix input = new Matrix(3, 4, (r, c) -> (double)(r - c) / 4);
+        Path path = Files.createTempFile("network", ".bin");
+        Path customPath = Files.createTempFile("custom", ".bin");
+
+        try {
+            CompiledNetwork direct = net.compile(true);
+            assertTrue(direct.isOffHeap());
+            assertFalse(net.compile().isOffHeap());
+            assertPredictions(net.predict(input), direct.predict(input));
+
+            net.compile().save(path);
+            CompiledNetwork mapped = CompiledNetwork.map(path);
+            assertTrue(mapped.isOffHeap());
+            assertPredictions(net.predict(input), mapped.predict(input));
+
+            custom.compile().save(customPath);
+            try {
+                CompiledNetwork.map(customPath);
+                fail("Mapped a network with a custom activation function");
+            } catch (IOException e) {
+                // expected
+            }
+            assertPredictions(custom.predict(input), CompiledNetwork.map(customPath, relu).predict(input));
+        } finally {
+            Files.delete(path);
+            Files.delete(customPath);
+        }
+    }
+
+    private static void assertPredictions(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRows(), actual.getRows());
+        assertEquals(expected.getCols(), actual.getCols());
+
+        for (int r = 0; r < expected.getRows(); r++) {
+            for (int c = 0; c < expected.getCols(); c++) {
+                assertEquals(expected.get(r, c), actual.get(r, c), 1e-12);
+            }
+        }
+    }
+
+    public void testSeededInitialization() {
+        Matrix input = new Matrix(new double[][] {{0.3, 0.7}});
+
+        Network a = new Network(2, Arrays.asList(300, 300), 1, true, Network.SIGMOID, WeightInitialization.XAVIER, 42);
+        Network b = new Network(2, Arrays.asList(300, 300), 1, true, Network.SIGMOID, WeightInitialization.XAVIER, 42);
+        Network c = new Network(2, Arrays.asList(300, 300), 1, true, Network.SIGMOID, WeightInitialization.XAVIER, 43);
+
+        assertEquals(a.predict(input), b.predict(input));
+        assertFalse(a.predict(input).equals(c.predict(input)));
+
+        // The 300-by-300 layer is above the threshold for parallel initialization
+        for (int l = 0; l < 3; l++) {
+            assertEquals(a.getTopology().get(l).weights, b.getTopology().get(l).weights);
+            assertEquals(a.getTopology().get(l).biasWeights, b.getTopology().get(l).biasWeights);
+        }
+    }
+
+    public void testPruning() {
+        Network net = new Network(2, Arrays.asList(10), 1, true, Network.SIGMOID, WeightInitialization.XAVIER, 11);
+        net.prune(0.8);
+
+        List<Matrix> masks = new ArrayList<>();
+        for (DenseLayer layer : net.getFullyConnectedLayers()) {
+            Matrix weights = layer.getWeights();
+            assertEquals((int)(0.8 * weights.getRows() * weights.getCols()), zeros(weights));
+            masks.add(layer.getState().pruningMask);
+        }
+
+        net.train(XorTrainingData.getInstance(), 0.5, 100, 1);
+
+        int nbrNonZeros = 0;
+        for (int l = 0; l < masks.size(); l++) {
+            Matrix weights = net.getFullyConnectedLayers().get(l).getWeights();
+            Matrix mask = masks.get(l);
+
+            for (int r = 0; r < weights.getRows(); r++) {
+                for (int c = 0; c < weights.getCols(); c++) {
+                    if (mask.get(r, c) == 0.0) {
+                        assertEquals(0.0, weights.get(r, c), 0.0);
+                    } else {
+                        nbrNonZeros++;
+                    }
+                }
+            }
+        }
+
+        SparseNetwork sparse = net.compileSparse();
+        Matrix input = new Matrix(new double[][] {{0, 0}, {0, 1}, {1, 0}, {1, 1}});
+        assertEquals(nbrNonZeros, sparse.getNbrNonZeros());
+        assertPredictions(net.predict(input), sparse.predict(input));
+    }
+
+    public void testPruningEqualWeights() {
+        Network net = new Network(2, Arrays.asList(10), 1, true, Network.SIGMOID, WeightInitialization.XAVIER, 11);
+
+        for (DenseLayer layer : net.getFullyConnectedLayers()) {
+            Matrix weights = layer.getWeights();
+            layer.setWeights(new Matrix(weights.getRows(), weights.getCols(), (r, c) -> 0.5), layer.getBiasWeights());
+        }
+
+        net.prune(0.8);
+
+        for (DenseLayer layer : net.getFullyConnectedLayers()) {
+            Matrix weights = layer.getWeights();
+            assertEquals((int)(0.8 * weights.getRows() * weights.getCols()), zeros(weights));
+        }
+    }
+
+    private static int zeros(Matrix m) {
+        int zeros = 0;
+
+        for (int r = 0; r < m.getRows(); r++) {
+            for (int c = 0; c < m.getCols(); c++) {
+                zeros += m.get(r, c) == 0.0 ? 1 : 0;
+            }
+        }
+
+        return zeros;
+    }
+
+    public void testConvolutionalNetwork() {
+        Network net = new Network(40, Arrays.asList(
+                LayerDefinition.convolution(2, 4, 5, 3, 2, 3),
+                LayerDefinition.maxPooling(3, 3, 3, 2, 2),
+                LayerDefinition.dense(2)), true, Network.SIGMOID, WeightInitialization.XAVIER, 7);
+
+        Matrix input = new Matrix(1, 40, (r, c) -> (double)(c % 7) / 7);
+        Matrix before = net.predict(input);
+        assertEquals(2, before.getCols());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        net.save(outputStream);
+        Network loaded = Network.load(new ByteArrayInputStream(outputStream.toByteArray()));
+
+        assertEquals(before, loaded.predict(input));
+    }
+
+    public void testConvolutionalGradient() {
+        Network net = new Network(40, Arrays.asList(
+                LayerDefinition.convolution(2, 4, 5, 2, 2, 2),
+                LayerDefinition.convolution(2, 3, 4, 2, 2, 2),
+                LayerDefinition.maxPooling(2, 2, 3, 2, 1),
+                LayerDefinition.dense(2)), true, Network.SIGMOID, WeightInitialization.XAVIER, 3);
+
+        Matrix input = new Matrix(1, 40, (r, c) -> Math.sin(c));
+        Matrix reference = new Matrix(new double[][] {{0.1, 0.9}});
+        double learningRate = 1e-6;
+        double h = 1e-5;
+
+        // The first convolution only receives its error through pooling and the col2im of the second
+        ConvolutionLayer layer = (ConvolutionLayer)net.getLayers().get(0);
+        Matrix kernel = layer.getWeights();
+        Matrix biasWeights = layer.getBiasWeights();
+        double[][] numerical = new double[kernel.getRows()][kernel.getCols()];
+
+        for (int r = 0; r < kernel.getRows(); r++) {
+            for (int c = 0; c < kernel.getCols(); c++) {
+                int row = r;
+                int col = c;
+                layer.setWeights(new Matrix(kernel.getRows(), kernel.getCols(),
+                        (i, j) -> kernel.get(i, j) + (i == row && j == col ? h : 0)), biasWeights);
+                double loss = loss(net, input, reference);
+                layer.setWeights(new Matrix(kernel.getRows(), kernel.getCols(),
+                        (i, j) -> kernel.get(i, j) - (i == row && j == col ? h : 0)), biasWeights);
+                numerical[r][c] = (loss - loss(net, input, reference)) / (2 * h);
+            }
+        }
+
+        layer.setWeights(kernel, biasWeights);
+        net.train(new TableTrainingData(input, reference), learningRate, 1, 1);
+
+        for (int r = 0; r < kernel.getRows(); r++) {
+            for (int c = 0; c < kernel.getCols(); c++) {
+                double analytical = (kernel.get(r, c) - layer.getWeights().get(r, c)) / learningRate;
+                assertEquals(numerical[r][c], analytical, 1e-6 + 1e-4 * Math.abs(numerical[r][c]));
+            }
+        }
+    }
+
+    public void testConvolutionalTraining() {
+        Network net = new Network(40, Arrays.asList(
+                LayerDefinition.convolution(2, 4, 5, 3, 2, 3),
+                LayerDefinition.maxPooling(3, 3, 3, 2, 2),
+                LayerDefinition.dense(2)), true, Network.SIGMOID, WeightInitialization.XAVIER, 7);
+
+        Matrix input = new Matrix(1, 40, (r, c) -> (double)(c % 7) / 7);
+        Matrix reference = new Matrix(new double[][] {{0.1, 0.9}});
+        double before = loss(net, input, reference);
+
+        net.train(new TableTrainingData(input, reference), 0.5, 50, 1);
+
+        assertTrue(loss(net, input, reference) < before / 10);
+    }
+
+    private static double loss(Network net, Matrix input, Matrix reference) {
+        Matrix error = net.predict(input).subtract(reference);
+        return 0.5 * error.multiply(error.transpose()).get(0, 0);
+    }
+}
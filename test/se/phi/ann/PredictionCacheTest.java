@@ -0,0 +1,85 @@
+package se.phi.ann;
+
+import junit.framework.TestCase;
+import se.phi.ann.examples.xor.XorTrainingData;
+import se.phi.math.Matrix;
+
+import java.util.Arrays;
+
+public class PredictionCacheTest extends TestCase {
+
+    private final Network network = new Network(2, Arrays.asList(3), 1, true, Network.SIGMOID,
+            WeightInitialization.XAVIER, 9);
+
+    private static Matrix input(double x0, double x1) {
+        return new Matrix(new double[][] {{x0, x1}});
+    }
+
+    public void testHitsAndMisses() {
+        PredictionCache cache = new PredictionCache(network, 10);
+
+        assertEquals(0.0, cache.getHitRate());
+
+        Matrix first = cache.predict(input(0, 1));
+        assertEquals(network.predict(input(0, 1)), first);
+        assertSame(first, cache.predict(input(0, 1)));
+        cache.predict(input(1, 0));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1.0 / 3, cache.getHitRate(), 1e-12);
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testLeastRecentlyUsedEviction() {
+        PredictionCache cache = new PredictionCache(network, 2);
+
+        cache.predict(input(0, 0));
+        cache.predict(input(0, 1));
+        cache.predict(input(0, 0));
+        cache.predict(input(1, 0));
+        assertEquals(2, cache.size());
+
+        cache.predict(input(0, 0));
+        cache.predict(input(1, 0));
+        assertEquals(3, cache.getHitCount());
+
+        cache.predict(input(0, 1));
+        assertEquals(4, cache.getMissCount());
+    }
+
+    public void testQuantizedKeys() {
+        PredictionCache cache = new PredictionCache(network, 10, 0.25);
+
+        Matrix prediction = cache.predict(input(0.26, 0.49));
+        assertEquals(network.predict(input(0.25, 0.5)), prediction);
+        assertSame(prediction, cache.predict(input(0.24, 0.51)));
+        assertEquals(1, cache.getHitCount());
+
+        cache.predict(input(0.1, 0.5));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    public void testInvalidation() {
+        PredictionCache cache = new PredictionCache(network, 10);
+
+        Matrix beforeTraining = cache.predict(input(1, 1));
+        network.train(XorTrainingData.getInstance(), 0.7, 10, 1);
+
+        Matrix afterTraining = cache.predict(input(1, 1));
+        assertFalse(beforeTraining.equals(afterTraining));
+        assertEquals(network.predict(input(1, 1)), afterTraining);
+        assertEquals(1, cache.size());
+
+        network.prune(0.5);
+
+        Matrix afterPruning = cache.predict(input(1, 1));
+        assertFalse(afterTraining.equals(afterPruning));
+        assertEquals(network.predict(input(1, 1)), afterPruning);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+}
@@ -0,0 +1,46 @@
+package se.phi.ann.examples.table;
+
+import se.phi.ann.TrainingData;
+import se.phi.math.Matrix;
+
+/**
+ * Training data given as a table, row i of the inputs and row i of the references make item i.
+ */
+public class TableTrainingData implements TrainingData {
+
+    private final int nbrInputs;
+    private final int nbrOutputs;
+    private final TableTrainingDataItem[] items;
+
+    public TableTrainingData(Matrix inputs, Matrix references) {
+        if (inputs.getRows() != references.getRows()) {
+            throw new IllegalArgumentException(String.format("Number of rows do not agree %d, %d",
+                    inputs.getRows(), references.getRows()));
+        }
+
+        nbrInputs = inputs.getCols();
+        nbrOutputs = references.getCols();
+        items = new TableTrainingDataItem[inputs.getRows()];
+
+        for (int r = 0; r < items.length; r++) {
+            int row = r;
+            items[r] = new TableTrainingDataItem(new Matrix(1, nbrInputs, (i, c) -> inputs.get(row, c)),
+                    new Matrix(1, nbrOutputs, (i, c) -> references.get(row, c)));
+        }
+    }
+
+    @Override
+    public int getNbrInputs() {
+        return nbrInputs;
+    }
+
+    @Override
+    public int getNbrOutputs() {
+        return nbrOutputs;
+    }
+
+    @Override
+    public TableTrainingDataItem[] getTrainingData() {
+        return items;
+    }
+}
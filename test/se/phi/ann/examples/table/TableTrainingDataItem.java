@@ -0,0 +1,40 @@
+package se.phi.ann.examples.table;
+
+import se.phi.ann.TrainingDataItem;
+import se.phi.math.Matrix;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An item of {@link TableTrainingData} which counts how many times its input is used.
+ */
+public class TableTrainingDataItem extends TrainingDataItem {
+
+    private final Matrix inputData;
+    private final Matrix referenceData;
+    private final AtomicInteger nbrUses = new AtomicInteger();
+
+    TableTrainingDataItem(Matrix inputData, Matrix referenceData) {
+        this.inputData = inputData;
+        this.referenceData = referenceData;
+    }
+
+    @Override
+    public Matrix getInputData() {
+        nbrUses.incrementAndGet();
+        return inputData;
+    }
+
+    @Override
+    public Matrix getReferenceData() {
+        return referenceData;
+    }
+
+    public int getNbrUses() {
+        return nbrUses.get();
+    }
+
+    public void resetNbrUses() {
+        nbrUses.set(0);
+    }
+}
@@ -0,0 +1,140 @@
+package se.phi.ann.server;
+
+import junit.framework.TestCase;
+import se.phi.ann.CompiledNetwork;
+import se.phi.ann.Network;
+import se.phi.ann.WeightInitialization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class BatchingPredictorTest extends TestCase {
+
+    private static final int NBR_SAMPLES = 64;
+
+    private final CompiledNetwork network = new Network(3, Arrays.asList(5), 2, true, Network.SIGMOID,
+            WeightInitialization.XAVIER, 5).compile();
+
+    private static double[] sample(int i) {
+        return new double[] {i % 3, (double)i / NBR_SAMPLES, -1};
+    }
+
+    private void assertPrediction(int i, double[] actual) {
+        double[] expected = new double[network.getNbrOutputs()];
+        network.predict(sample(i), expected);
+
+        for (int c = 0; c < expected.length; c++) {
+            assertEquals(expected[c], actual[c], 1e-12);
+        }
+    }
+
+    public void testFullBatchesDoNotWait() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try (BatchingPredictor predictor = new BatchingPredictor(network, 8, 1, TimeUnit.HOURS)) {
+            List<Future<double[]>> results = new ArrayList<>();
+
+            for (int i = 0; i < NBR_SAMPLES; i++) {
+                int sample = i;
+                results.add(executor.submit(() -> predictor.submit(sample(sample)).get()));
+            }
+
+            for (int i = 0; i < NBR_SAMPLES; i++) {
+                assertPrediction(i, results.get(i).get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testPartialBatchWaitsForMaxWait() throws Exception {
+        try (BatchingPredictor predictor = new BatchingPredictor(network, 8, 200, TimeUnit.MILLISECONDS)) {
+            long start = System.nanoTime();
+            CompletableFuture<double[]> first = predictor.submit(sample(0));
+            CompletableFuture<double[]> second = predictor.submit(sample(1));
+
+            assertPrediction(0, first.get(10, TimeUnit.SECONDS));
+            assertPrediction(1, second.get(10, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        }
+    }
+
+    public void testRejectsWhenFull() throws Exception {
+        try (BatchingPredictor predictor = new BatchingPredictor(network, 8, 2, 1, TimeUnit.HOURS)) {
+            CompletableFuture<double[]> first = predictor.submit(sample(0));
+            CompletableFuture<double[]> second = predictor.submit(sample(1));
+            CompletableFuture<double[]> third = predictor.submit(sample(2));
+
+            try {
+                third.get(10, TimeUnit.SECONDS);
+                fail("Accepted more samples than allowed to be pending");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            assertFalse(first.isDone());
+            assertFalse(second.isDone());
+        }
+    }
+
+    public void testCloseDrainsQueue() throws Exception {
+        BatchingPredictor predictor = new BatchingPredictor(network, NBR_SAMPLES, 1, TimeUnit.HOURS);
+        List<CompletableFuture<double[]>> results = new ArrayList<>();
+
+        for (int i = 0; i < NBR_SAMPLES / 2; i++) {
+            results.add(predictor.submit(sample(i)));
+        }
+
+        predictor.close();
+
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue(results.get(i).isDone());
+            assertPrediction(i, results.get(i).get());
+        }
+
+        try {
+            predictor.submit(sample(0)).get(10, TimeUnit.SECONDS);
+            fail("Predicted after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    public void testConcurrentClose() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            for (int round = 0; round < 20; round++) {
+                BatchingPredictor predictor = new BatchingPredictor(network, 4, 1, TimeUnit.MILLISECONDS);
+                List<Future<CompletableFuture<double[]>>> results = new ArrayList<>();
+
+                for (int i = 0; i < NBR_SAMPLES; i++) {
+                    int sample = i;
+                    results.add(executor.submit(() -> predictor.submit(sample(sample))));
+                }
+
+                predictor.close();
+
+                for (int i = 0; i < NBR_SAMPLES; i++) {
+                    CompletableFuture<double[]> result = results.get(i).get(10, TimeUnit.SECONDS);
+
+                    try {
+                        assertPrediction(i, result.get(10, TimeUnit.SECONDS));
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof IllegalStateException);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
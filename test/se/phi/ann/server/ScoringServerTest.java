@@ -0,0 +1,100 @@
+package se.phi.ann.server;
+
+import junit.framework.TestCase;
+import se.phi.ann.CompiledNetwork;
+import se.phi.ann.Network;
+import se.phi.ann.WeightInitialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ScoringServerTest extends TestCase {
+
+    public void testPredict() throws IOException {
+        CompiledNetwork network = network();
+        double[] expected = new double[1];
+        network.predict(new double[] {0.25, 0.5}, expected);
+
+        try (ScoringServer server = new ScoringServer(new InetSocketAddress("localhost", 0), network,
+                4, 5, TimeUnit.MILLISECONDS)) {
+            server.start();
+
+            HttpURLConnection connection = post(server, "0.25, 0.5");
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(expected[0], Double.parseDouble(read(connection.getInputStream()).trim()), 1e-12);
+
+            assertEquals(400, post(server, "0.25").getResponseCode());
+        }
+    }
+
+    public void testBodyTooLarge() throws IOException {
+        try (ScoringServer server = new ScoringServer(new InetSocketAddress("localhost", 0), network(),
+                4, 5, TimeUnit.MILLISECONDS, 2, 4, 16)) {
+            server.start();
+
+            assertEquals(200, post(server, "0.25 0.5").getResponseCode());
+            assertEquals(413, post(server, "0.250000000 0.500000000").getResponseCode());
+        }
+    }
+
+    public void testTooManyPendingRequests() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        // Two requests are handled concurrently but only one sample may be pending, the one sample
+        // waits for a second one to fill its batch, hence whichever arrives last is rejected
+        try (ScoringServer server = new ScoringServer(new InetSocketAddress("localhost", 0), network(),
+                2, 1, TimeUnit.HOURS, 2, 1, ScoringServer.DEFAULT_MAX_BODY_BYTES)) {
+            server.start();
+
+            CompletionService<Integer> responses = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < 2; i++) {
+                responses.submit(() -> post(server, "0.25 0.5").getResponseCode());
+            }
+
+            assertEquals(503, (int)responses.take().get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static CompiledNetwork network() {
+        return new Network(2, Arrays.asList(3), 1, true, Network.SIGMOID, WeightInitialization.XAVIER, 3).compile();
+    }
+
+    private static HttpURLConnection post(ScoringServer server, String body) throws IOException {
+        URL url = new URL("http://localhost:" + server.getPort() + "/predict");
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return connection;
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+
+        while ((n = inputStream.read(buffer)) > 0) {
+            body.write(buffer, 0, n);
+        }
+
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
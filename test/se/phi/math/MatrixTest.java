@@ -122,4 +122,94 @@ public class MatrixTest extends TestCase {
         Matrix identity = Matrix.Identity(cols);
         assertEquals(identity, identity.transpose());
     }
+
+    public void testMultiplyAddApply() {
+        Matrix a = new Matrix(new double[][] {{1, 2, 3}, {4, 5, 6}});
+        Matrix w = new Matrix(new double[][] {{2, 3}, {5, 6}, {8, 9}});
+        Matrix b = new Matrix(new double[][] {{1, -1}});
+
+        Matrix expected = a.multiply(w).add(Matrix.Ones(2, 1).multiply(b)).apply(x -> x * 2);
+
+        assertEquals(expected, a.multiplyAddApply(w, b, x -> x * 2));
+        assertEquals(a.multiply(w), a.multiplyAddApply(w, null, x -> x));
+    }
+
+    public void testLazyExpression() {
+        Matrix a = new Matrix(3, 1, (r, c) -> (double)r + 1);
+        Matrix b = new Matrix(1, 4, (r, c) -> (double)c - 1);
+        Matrix w = new Matrix(4, 3, (r, c) -> (double)r * 3 + c);
+
+        Matrix expected = w.subtract(a.multiply(b).scale(0.5).transpose());
+        Matrix actual = w.lazy().subtract(a.lazy().multiply(b).scale(0.5).transpose()).evaluate();
+        assertEquals(expected, actual);
+
+        Matrix square = new Matrix(3, 3, (r, c) -> (double)r - c);
+        expected = square.multiply(square).add(square).apply(x -> x * x);
+        actual = square.lazy().multiply(square).add(square).apply(x -> x * x).evaluate();
+        assertEquals(expected, actual);
+    }
+
+    public void testSparseMultiplyAddApply() {
+        Matrix a = new Matrix(new double[][] {{1, 2, 3}, {4, 5, 6}});
+        Matrix w = new Matrix(new double[][] {{0, 3}, {5, 0}, {0, 0}});
+        Matrix b = new Matrix(new double[][] {{1, -1}});
+
+        SparseMatrix sparse = SparseMatrix.of(w);
+
+        assertEquals(2, sparse.getNbrNonZeros());
+        assertEquals(w, sparse.toMatrix());
+        assertEquals(a.multiplyAddApply(w, b, x -> x * 2), a.multiplyAddApply(sparse, b, x -> x * 2));
+    }
+
+    public void testViews() {
+        Matrix a = new Matrix(5, 7, (r, c) -> (double)r * 7 + c);
+        Matrix b = new Matrix(7, 4, (r, c) -> (double)r - c);
+        Matrix expected = a.multiply(b);
+
+        assertEquals(expected, a.transpose().copy().transpose().multiply(b));
+        assertEquals(expected, a.multiply(b.transpose().copy().transpose()));
+        assertEquals(expected, a.transpose().copy().transpose().multiply(b.transpose().copy().transpose()));
+
+        Matrix block = a.subMatrix(1, 2, 3, 4);
+        assertEquals(a.get(1, 2), block.get(0, 0));
+        assertEquals(a.get(3, 5), block.get(2, 3));
+        assertEquals(block.transpose(), a.transpose().subMatrix(2, 1, 4, 3));
+
+        assertEquals(a.column(3).transpose(), a.transpose().row(3));
+        assertEquals(expected.row(2), a.row(2).multiply(b));
+    }
+
+    public void testHashCode() {
+        Matrix a = new Matrix(3, 4, (r, c) -> (double)r * 4 + c);
+        Matrix b = new Matrix(4, 3, (r, c) -> (double)c * 4 + r).transpose();
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+    }
+
+    public void testKernelConfiguration() {
+        Matrix a = new Matrix(20, 30, (r, c) -> Math.sin(r * 30 + c));
+        Matrix b = new Matrix(30, 50, (r, c) -> Math.cos(r * 50 + c));
+        Matrix expected = a.multiply(b);
+
+        KernelConfiguration previous = Matrix.getKernelConfiguration();
+        try {
+            Matrix.setKernelConfiguration(new KernelConfiguration(16, 1));
+            assertEquals(expected, a.multiply(b));
+        } finally {
+            Matrix.setKernelConfiguration(previous);
+        }
+
+        Matrix bias = new Matrix(1, 50, (r, c) -> (double)c / 50);
+        Matrix fused = a.multiplyAddApply(b, bias, Math::tanh);
+        assertEquals(fused, a.multiplyAddApply(b, bias, Math::tanh, new KernelConfiguration(16, 1)));
+        assertEquals(fused, a.multiplyAddApply(b, bias, Math::tanh, new KernelConfiguration(7, Long.MAX_VALUE)));
+
+        assertEquals(a.add(a), a.add(a, new KernelConfiguration(16, Long.MAX_VALUE, 1)));
+
+        KernelConfiguration configuration = new KernelConfiguration(16, 1, 64);
+        assertEquals(configuration, KernelConfiguration.parse(configuration.toString()));
+        assertEquals(new KernelConfiguration(16, 1), KernelConfiguration.parse("16 1"));
+        assertEquals(Long.MAX_VALUE, KernelConfiguration.parse("16 1").getElementWiseThreshold());
+    }
 }